@@ -2,13 +2,46 @@
 
 in vec4 v_color;
 in vec2 v_texCoord0;
+flat in int v_texSlot;
+flat in int v_blendMode;
 
 out vec4 o_fragColor;
 
-uniform sampler2D u_texture;
+// Must match DrawBatch.TextureSlots
+uniform sampler2D u_textures[8];
 
 void main() {
-	vec4 texColor = texture(u_texture, v_texCoord0);
+    if (v_blendMode == 3) {
+        // Counting overdraw, see DrawBatch.overdraw
+        o_fragColor = vec4(1.0 / 255.0);
+        return;
+    }
+
+    // Gradients are taken outside of the switch, because the slot does not have to be uniform across the pixel quad
+    vec2 dx = dFdx(v_texCoord0);
+    vec2 dy = dFdy(v_texCoord0);
+
+    vec4 texColor;
+    switch (v_texSlot) {
+        case 0: texColor = textureGrad(u_textures[0], v_texCoord0, dx, dy); break;
+        case 1: texColor = textureGrad(u_textures[1], v_texCoord0, dx, dy); break;
+        case 2: texColor = textureGrad(u_textures[2], v_texCoord0, dx, dy); break;
+        case 3: texColor = textureGrad(u_textures[3], v_texCoord0, dx, dy); break;
+        case 4: texColor = textureGrad(u_textures[4], v_texCoord0, dx, dy); break;
+        case 5: texColor = textureGrad(u_textures[5], v_texCoord0, dx, dy); break;
+        case 6: texColor = textureGrad(u_textures[6], v_texCoord0, dx, dy); break;
+        default: texColor = textureGrad(u_textures[7], v_texCoord0, dx, dy); break;
+    }
 
     o_fragColor = texColor * v_color;
-}
\ No newline at end of file
+
+    // Blend modes, must match DrawBatch.BlendMode constants
+    if (v_blendMode != 0) {
+        // Premultiplied
+        o_fragColor.rgb *= o_fragColor.a;
+        if (v_blendMode == 2) {
+            // Additive
+            o_fragColor.a = 0.0;
+        }
+    }
+}
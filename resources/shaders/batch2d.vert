@@ -3,15 +3,24 @@
 in vec2 a_position;
 in vec4 a_color;
 in vec2 a_texCoord0;
+// Texture slot, transform slot and blend mode
+in vec4 a_slots;
 
 out vec4 v_color;
 out vec2 v_texCoord0;
+flat out int v_texSlot;
+flat out int v_blendMode;
 
 uniform mat4 u_projTrans;
+// Must match DrawBatch.TransformSlots, first one is identity
+uniform mat3 u_transforms[64];
 
 void main() {
     v_color = a_color;
     v_texCoord0 = a_texCoord0;
+    v_texSlot = int(a_slots.x);
+    v_blendMode = int(a_slots.z);
 
-    gl_Position = u_projTrans * vec4(a_position, 0.0, 1.0);
+    vec3 position = u_transforms[int(a_slots.y)] * vec3(a_position, 1.0);
+    gl_Position = u_projTrans * vec4(position.xy, 0.0, 1.0);
 }
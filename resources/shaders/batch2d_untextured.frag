@@ -0,0 +1,26 @@
+#version 330
+
+in vec4 v_color;
+flat in int v_blendMode;
+
+out vec4 o_fragColor;
+
+void main() {
+    if (v_blendMode == 3) {
+        // Counting overdraw, see DrawBatch.overdraw
+        o_fragColor = vec4(1.0 / 255.0);
+        return;
+    }
+
+    o_fragColor = v_color;
+
+    // Blend modes, must match DrawBatch.BlendMode constants
+    if (v_blendMode != 0) {
+        // Premultiplied
+        o_fragColor.rgb *= o_fragColor.a;
+        if (v_blendMode == 2) {
+            // Additive
+            o_fragColor.a = 0.0;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+#version 330
+
+in vec2 a_position;
+in vec4 a_color;
+// Texture slot (unused), transform slot and blend mode
+in vec4 a_slots;
+
+out vec4 v_color;
+flat out int v_blendMode;
+
+uniform mat4 u_projTrans;
+// Must match DrawBatch.TransformSlots, first one is identity
+uniform mat3 u_transforms[64];
+
+void main() {
+    v_color = a_color;
+    v_blendMode = int(a_slots.z);
+
+    vec3 position = u_transforms[int(a_slots.y)] * vec3(a_position, 1.0);
+    gl_Position = u_projTrans * vec4(position.xy, 0.0, 1.0);
+}
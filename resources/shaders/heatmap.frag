@@ -0,0 +1,26 @@
+#version 330
+
+in vec2 v_texCoord0;
+
+out vec4 o_fragColor;
+
+// Overdraw counts, 1/255 per write, see DrawBatch.overdraw
+uniform sampler2D u_texture;
+
+// Colors of 0, 1, 2, 3, 4 and 8 or more writes
+const vec3 ramp[6] = vec3[6](
+    vec3(0.0, 0.0, 0.0),
+    vec3(0.0, 0.0, 0.6),
+    vec3(0.0, 0.7, 0.0),
+    vec3(1.0, 1.0, 0.0),
+    vec3(1.0, 0.0, 0.0),
+    vec3(1.0, 1.0, 1.0));
+
+void main() {
+    float count = texture(u_texture, v_texCoord0).r * 255.0;
+    // Linear up to 4 writes, then slower up to 8
+    float position = count <= 4.0 ? count : min(4.0 + (count - 4.0) / 4.0, 5.0);
+    int index = int(floor(position));
+    vec3 color = index >= 5 ? ramp[5] : mix(ramp[index], ramp[index + 1], fract(position));
+    o_fragColor = vec4(color, 1.0);
+}
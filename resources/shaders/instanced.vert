@@ -0,0 +1,34 @@
+#version 330
+
+// Vertex of the shape template, centered on origin with unit size
+in vec2 a_position;
+
+in vec2 a_instPosition;
+in vec2 a_instSize;
+in float a_instRotation;
+in vec4 a_instColor;
+
+out vec4 v_color;
+out vec2 v_texCoord0;
+flat out int v_texSlot;
+flat out int v_blendMode;
+
+uniform mat4 u_projTrans;
+// Blend mode of the batch, see batch2d.frag
+uniform int u_blendMode;
+
+void main() {
+    vec2 scaled = a_position * a_instSize;
+    float s = sin(a_instRotation);
+    float c = cos(a_instRotation);
+    vec2 rotated = vec2(scaled.x * c - scaled.y * s, scaled.x * s + scaled.y * c);
+
+    v_color = a_instColor;
+    v_texCoord0 = vec2(0.5);
+    v_texSlot = 0;
+    v_blendMode = u_blendMode;
+
+    // Used only by points
+    gl_PointSize = a_instSize.x;
+    gl_Position = u_projTrans * vec4(a_instPosition + rotated, 0.0, 1.0);
+}
@@ -6,6 +6,7 @@ import com.darkyen.processingdx.Applet
  *
  */
 fun main(args: Array<String>) {
-    val appletClass = Class.forName("com.darkyen.pv259.${args[0]}").getField("INSTANCE").get(null) as Applet
+    val className = if (args[0].contains('.')) args[0] else "com.darkyen.pv259.${args[0]}"
+    val appletClass = Class.forName(className).getField("INSTANCE").get(null) as Applet
     appletClass.start()
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+package com.darkyen.benchmark
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.Texture
+import com.darkyen.Objects
+import com.darkyen.processingdx.*
+import com.darkyen.processingdx.functions.Settings
+
+/**
+ * Counts flushes when drawing every bundled texture as a small sprite, with and without [Atlas].
+ *
+ * Run by passing `com.darkyen.benchmark.AtlasBenchmark` to main.
+ */
+object AtlasBenchmark : Applet() {
+
+    override fun Settings.settings() {
+        size(1000, 800)
+    }
+
+    private val spriteAtlas = Atlas()
+    private val sprites = Objects<Texture>()
+    private var useAtlas = false
+    private var frame = 0
+
+    override fun setup() {
+        val textures = Gdx.files.internal("textures")
+        for (directory in textures.list()) {
+            if (!directory.isDirectory) continue
+            for (file in directory.list(".png")) {
+                val name = "${directory.name()}/${file.nameWithoutExtension()}"
+                sprites.add(spriteAtlas.add(texture(name), 64))
+            }
+        }
+        spriteAtlas.pack()
+        println(spriteAtlas.report())
+    }
+
+    override fun DrawBatch.draw(delta: Float) {
+        atlas = if (useAtlas) spriteAtlas else null
+        background(rgb(0.2f))
+
+        draw {
+            val columns = 25
+            for (i in 0 until sprites.size) {
+                rectangle((i % columns) * 40f, (i / columns) * 40f, 38f, 38f, sprites[i])
+            }
+        }
+
+        if (++frame == 60) {
+            println("Atlas: $useAtlas, ${sprites.size} sprites, $renderCalls flushes")
+            frame = 0
+            useAtlas = !useAtlas
+        }
+    }
+}
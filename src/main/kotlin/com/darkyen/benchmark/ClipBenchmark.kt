@@ -0,0 +1,93 @@
+package com.darkyen.benchmark
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.utils.Align
+import com.darkyen.processingdx.*
+import com.darkyen.processingdx.font.Font
+import com.darkyen.processingdx.font.GlyphLayout
+import com.darkyen.processingdx.functions.Settings
+
+/**
+ * Compares clipping many small panels of scrolling text on the CPU, with [DrawBatch.clip],
+ * against the scissor test, which has to flush the batch on every clip change.
+ * Every mode is drawn for 60 frames, then flushes and batch time are printed and next mode starts.
+ *
+ * Run by passing `com.darkyen.benchmark.ClipBenchmark` to main.
+ */
+object ClipBenchmark : Applet() {
+
+    override fun Settings.settings() {
+        size(1000, 800)
+    }
+
+    private val font by lazy(LazyThreadSafetyMode.NONE) {
+        Font(Gdx.files.internal("fonts/Runa Sans.stbfont"))
+    }
+
+    private val layout by lazy(LazyThreadSafetyMode.NONE) {
+        val text = StringBuilder()
+        for (i in 0 until 300) {
+            text.append(('!' + (i * 7) % 90))
+            if (i % 9 == 8) text.append(' ')
+        }
+        GlyphLayout(font, true).apply { setText(text, rgb(0.9f), 140f, Align.left) }
+    }
+
+    private val panelFill = solidColorFill(rgb(0.25f))
+
+    private val PanelColumns = 10
+    private val PanelRows = 8
+    private val PanelSize = 96f
+
+    private val modes = arrayOf("Unclipped", "CPU clip", "Scissor")
+    private var mode = 0
+    private var frame = 0
+    private var flushes = 0L
+    private var nanos = 0L
+
+    private inline fun DrawBatch.scissor(x:Float, y:Float, width:Float, height:Float, func:DrawBatch.()->Unit) {
+        flush()
+        Gdx.gl.glEnable(GL20.GL_SCISSOR_TEST)
+        Gdx.gl.glScissor(x.toInt(), y.toInt(), width.toInt(), height.toInt())
+        func()
+        flush()
+        Gdx.gl.glDisable(GL20.GL_SCISSOR_TEST)
+    }
+
+    override fun DrawBatch.draw(delta: Float) {
+        background(rgb(0.1f))
+        val scroll = (time.toFloat() * 20f) % layout.height
+
+        draw {
+            for (row in 0 until PanelRows) {
+                for (column in 0 until PanelColumns) {
+                    val x = column * (PanelSize + 4f)
+                    val y = row * (PanelSize + 4f)
+                    rectangle(x, y, PanelSize, PanelSize, panelFill)
+
+                    when (mode) {
+                        0 -> layout.draw(this, x - 20f, y + PanelSize + scroll)
+                        1 -> clip(x, y, PanelSize, PanelSize) {
+                            layout.draw(this, x - 20f, y + PanelSize + scroll)
+                        }
+                        else -> scissor(x, y, PanelSize, PanelSize) {
+                            layout.draw(this, x - 20f, y + PanelSize + scroll)
+                        }
+                    }
+                }
+            }
+        }
+
+        flushes += renderCalls
+        nanos += metrics.batchNanos
+
+        if (++frame == 60) {
+            println("%-10s %6.1f flushes/frame %8.3f ms/frame".format(modes[mode], flushes / 60.0, nanos / 60.0 / 1_000_000.0))
+            frame = 0
+            flushes = 0L
+            nanos = 0L
+            mode = (mode + 1) % modes.size
+        }
+    }
+}
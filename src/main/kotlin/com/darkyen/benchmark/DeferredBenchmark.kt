@@ -0,0 +1,58 @@
+package com.darkyen.benchmark
+
+import com.badlogic.gdx.graphics.GL20
+import com.darkyen.processingdx.*
+import com.darkyen.processingdx.functions.Settings
+
+/**
+ * Counts flushes of a scene which interleaves additive and alpha blended sprites with more textures
+ * than fit into one batch, drawn immediately, [deferred][DrawBatch.deferred]
+ * and immediately with [premultiplied alpha][DrawBatch.premultipliedAlpha].
+ *
+ * Run by passing `com.darkyen.benchmark.DeferredBenchmark` to main.
+ */
+object DeferredBenchmark : Applet() {
+
+    override fun Settings.settings() {
+        size(1000, 800)
+    }
+
+    private val textures by lazy(LazyThreadSafetyMode.NONE) {
+        arrayOf("brick/Blue_glazed", "fabric/Red_velvet", "wood/American_cherry", "metal/Alloy_diamond_plate", "stone/Black_granite",
+                "ground/Beach_sand", "roof/Blue_shingle", "floor/Gray_swirl_marble", "brick/Blue_glazed_bmp", "fabric/Red_velvet_bmp")
+                .map { texture(it) }
+    }
+
+    private val modes = arrayOf("Immediate", "Deferred", "Premultiplied")
+    private var mode = 0
+    private var frame = 0
+
+    override fun DrawBatch.draw(delta: Float) {
+        deferred = mode == 1
+        premultipliedAlpha = mode == 2
+        background(rgb(0.1f))
+
+        draw {
+            for (y in 0 until 40) {
+                for (x in 0 until 50) {
+                    val additive = (x + y) % 2 == 0
+                    layer = if (additive) 1 else 0
+                    if (additive) {
+                        setBlendFunction(GL20.GL_SRC_ALPHA, GL20.GL_ONE)
+                    } else {
+                        setBlendFunction()
+                    }
+                    rectangle(x * 20f, y * 20f, 18f, 18f, textures[(x * 3 + y) % textures.size], rgb(1f, 1f, 1f, 0.6f))
+                }
+            }
+            setBlendFunction()
+            layer = 0
+        }
+
+        if (++frame == 60) {
+            println("${modes[mode]}: $renderCalls flushes, $savedRenderCalls saved by sorting")
+            frame = 0
+            mode = (mode + 1) % modes.size
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.darkyen.benchmark
+
+import com.badlogic.gdx.math.MathUtils
+import com.darkyen.processingdx.*
+import com.darkyen.processingdx.functions.Settings
+
+/**
+ * Measures the cost of [DrawBatch.flush] for each [DrawBatch.UploadMode] on a line-heavy scene.
+ * Every scenario is drawn for [FramesPerScenario] frames, then averages per frame are printed and next scenario starts.
+ *
+ * Run by passing `com.darkyen.benchmark.FlushBenchmark` to main.
+ */
+object FlushBenchmark : Applet() {
+
+    override fun Settings.settings() {
+        size(1000, 800)
+    }
+
+    private class Scenario(val name:String, val mode:DrawBatch.UploadMode, val earlySubmitVertices:Int)
+
+    private val scenarios = arrayOf(
+            Scenario("Direct (before)", DrawBatch.UploadMode.Direct, 0),
+            Scenario("Orphan", DrawBatch.UploadMode.Orphan, 0),
+            Scenario("Ring", DrawBatch.UploadMode.Ring, 0),
+            Scenario("Ring + early submit", DrawBatch.UploadMode.Ring, 4096)
+    )
+
+    private val FramesPerScenario = 300
+    private val WarmupFrames = 30
+
+    private var scenario = 0
+    private var frame = 0
+    private var flushes = 0L
+    private var bytes = 0L
+    private var nanos = 0L
+
+    private val LineCount = 400
+    private val LinePoints = 150
+    private val strokes = Array(LineCount) { i ->
+        Stroke(2f + (i % 5), solidColorFill(hsb(i.toFloat() / LineCount, 0.7f, 0.9f)), join = if (i % 7 == 0) Stroke.Join.Round else Stroke.Join.Bevel)
+    }
+
+    override fun DrawBatch.draw(delta: Float) {
+        val current = scenarios[scenario]
+        uploadMode = current.mode
+        earlySubmitVertices = current.earlySubmitVertices
+
+        background(rgb(0.1f))
+        draw {
+            val phase = time.toFloat()
+            for (l in 0 until LineCount) {
+                val baseY = (l + 0.5f) * height / LineCount
+                line(strokes[l]) {
+                    for (p in 0 until LinePoints) {
+                        val x = p * width / (LinePoints - 1f)
+                        vertex(x, baseY + MathUtils.sin(phase + p * 0.3f + l) * 20f)
+                    }
+                }
+            }
+        }
+
+        frame++
+        if (frame > WarmupFrames) {
+            flushes += renderCalls
+            bytes += bytesUploaded
+            nanos += flushNanos
+        }
+
+        if (frame == WarmupFrames + FramesPerScenario) {
+            val frames = FramesPerScenario.toDouble()
+            println("%-22s %8.1f flushes/frame %10.1f KiB/frame %8.3f ms in flush/frame".format(
+                    current.name, flushes / frames, bytes / frames / 1024.0, nanos / frames / 1_000_000.0))
+
+            frame = 0
+            flushes = 0L
+            bytes = 0L
+            nanos = 0L
+            scenario = (scenario + 1) % scenarios.size
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.darkyen.benchmark
+
+import com.badlogic.gdx.math.MathUtils
+import com.darkyen.processingdx.*
+import com.darkyen.processingdx.functions.Settings
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * Compares frame time of a line-heavy scene tessellated on the GL thread
+ * with the same scene tessellated into [CommandBuffer]s on all cores.
+ *
+ * Run by passing `com.darkyen.benchmark.ParallelBenchmark` to main.
+ */
+object ParallelBenchmark : Applet() {
+
+    override fun Settings.settings() {
+        size(1000, 800)
+    }
+
+    private val FramesPerScenario = 300
+    private val Groups = 16
+    private val LinesPerGroup = 50
+    private val LinePoints = 200
+
+    private val strokes = Array(Groups) { i -> Stroke(3f, solidColorFill(hsb(i.toFloat() / Groups, 0.7f, 0.9f)), join = Stroke.Join.Round) }
+
+    private val pool = ForkJoinPool.commonPool()
+    private var buffers:Array<CommandBuffer>? = null
+    private var parallel = false
+    private var frame = 0
+    private var nanos = 0L
+
+    private fun DrawBatch.group(group:Int, phase:Float) {
+        for (l in 0 until LinesPerGroup) {
+            val line = group * LinesPerGroup + l
+            val baseY = (line + 0.5f) * height / (Groups * LinesPerGroup)
+            line(strokes[group]) {
+                for (p in 0 until LinePoints) {
+                    vertex(p * width / (LinePoints - 1f), baseY + MathUtils.sin(phase + p * 0.2f + line) * 15f)
+                }
+            }
+        }
+    }
+
+    override fun DrawBatch.draw(delta: Float) {
+        background(rgb(0.1f))
+        val phase = time.toFloat()
+
+        val start = System.nanoTime()
+        draw {
+            if (parallel) {
+                val buffers = buffers ?: Array(Groups) { commandBuffer() }.apply { buffers = this }
+                pool.invokeAll(List(Groups) { group -> Callable { buffers[group].draw { group(group, phase) } } })
+                submit(*buffers)
+            } else {
+                for (group in 0 until Groups) {
+                    group(group, phase)
+                }
+            }
+        }
+        nanos += System.nanoTime() - start
+
+        if (++frame == FramesPerScenario) {
+            println("%-10s %8.3f ms/frame on %d threads".format(if (parallel) "Parallel" else "Serial",
+                    nanos / FramesPerScenario / 1_000_000.0, if (parallel) pool.parallelism else 1))
+            frame = 0
+            nanos = 0L
+            parallel = !parallel
+        }
+    }
+}
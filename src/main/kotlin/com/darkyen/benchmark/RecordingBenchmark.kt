@@ -0,0 +1,72 @@
+package com.darkyen.benchmark
+
+import com.badlogic.gdx.math.Affine2
+import com.badlogic.gdx.math.MathUtils
+import com.darkyen.processingdx.*
+import com.darkyen.processingdx.functions.Settings
+
+/**
+ * Compares CPU time of a frame which tessellates a static grid of lines and circles every frame
+ * with one that draws it once recorded by [DrawBatch.record], moved by a transform.
+ *
+ * Run by passing `com.darkyen.benchmark.RecordingBenchmark` to main.
+ */
+object RecordingBenchmark : Applet() {
+
+    override fun Settings.settings() {
+        size(1000, 800)
+    }
+
+    private val FramesPerScenario = 300
+
+    private val GridStroke = Stroke(6f, solidColorFill(rgb(0.9f)), Stroke.Cap.Round, Stroke.Join.Round)
+    private val DotFill = solidColorFill(rgb(0.9f, 0.3f, 0.2f))
+
+    private var recording:Recording? = null
+    private val transform = Affine2()
+    private var recorded = false
+    private var frame = 0
+    private var nanos = 0L
+
+    private fun DrawBatch.grid() {
+        for (y in 0 until 40) {
+            line(GridStroke) {
+                for (x in 0 until 50) {
+                    vertex(x * 20f, y * 20f + (x % 2) * 10f)
+                }
+            }
+        }
+        for (y in 0 until 40) {
+            for (x in 0 until 50) {
+                ellipseCentered(x * 20f, y * 20f, 4f, 4f, DotFill)
+            }
+        }
+    }
+
+    override fun DrawBatch.draw(delta: Float) {
+        background(rgb(0.1f))
+
+        val start = System.nanoTime()
+        draw {
+            if (recorded) {
+                var recording = this@RecordingBenchmark.recording
+                if (recording == null) {
+                    recording = record { grid() }
+                    this@RecordingBenchmark.recording = recording
+                }
+                transform.setToTranslation(MathUtils.sin(frame * 0.05f) * 10f, 0f)
+                draw(recording, transform)
+            } else {
+                grid()
+            }
+        }
+        nanos += System.nanoTime() - start
+
+        if (++frame == FramesPerScenario) {
+            println("%-10s %8.3f ms/frame".format(if (recorded) "Recorded" else "Immediate", nanos / FramesPerScenario / 1_000_000.0))
+            frame = 0
+            nanos = 0L
+            recorded = !recorded
+        }
+    }
+}
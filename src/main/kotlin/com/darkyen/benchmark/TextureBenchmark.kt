@@ -0,0 +1,81 @@
+package com.darkyen.benchmark
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.utils.Align
+import com.darkyen.processingdx.*
+import com.darkyen.processingdx.font.Font
+import com.darkyen.processingdx.font.GlyphLayout
+import com.darkyen.processingdx.functions.Settings
+
+/**
+ * Counts flushes caused by texture switches, with one texture per batch (as before [DrawBatch.textureSlots])
+ * and with all slots, on two scenes: colored text like in TextMess and interleaved tiled and solid fills.
+ *
+ * Run by passing `com.darkyen.benchmark.TextureBenchmark` to main.
+ */
+object TextureBenchmark : Applet() {
+
+    override fun Settings.settings() {
+        size(1000, 800)
+    }
+
+    private val font by lazy(LazyThreadSafetyMode.NONE) {
+        Font(Gdx.files.internal("fonts/Runa Sans.stbfont"))
+    }
+
+    private val layout by lazy(LazyThreadSafetyMode.NONE) {
+        val text = StringBuilder()
+        for (i in 0 until 2000) {
+            val color = hsb(i / 200f, 0.9f, 0.9f)
+            text.append("{#")
+            text.appendHex(color.red)
+            text.appendHex(color.green)
+            text.appendHex(color.blue)
+            text.append('}')
+            text.append(('!' + (i * 7) % 90))
+        }
+        GlyphLayout(font, true).apply { setText(text, rgb(1f), 960f, Align.left) }
+    }
+
+    private fun StringBuilder.appendHex(num:Float) {
+        val hex = MathUtils.clamp(Math.round(num * 255f), 0, 255).toString(16)
+        if (hex.length == 1) {
+            append('0')
+        }
+        append(hex)
+    }
+
+    private val fills by lazy(LazyThreadSafetyMode.NONE) {
+        arrayOf(tiledTextureFill("brick/Blue_glazed"), WhiteFill, tiledTextureFill("fabric/Red_velvet"), solidColorFill(rgb(0.4f, 0.2f, 0.2f)))
+    }
+
+    private val slotSettings = intArrayOf(1, DrawBatch.TextureSlots)
+    private var setting = 0
+    private var frame = 0
+
+    override fun DrawBatch.draw(delta: Float) {
+        textureSlots = slotSettings[setting]
+        background(rgb(0.2f))
+
+        draw {
+            layout.draw(this, 20f, height - 20f)
+        }
+        val textFlushes = renderCalls
+
+        draw {
+            for (y in 0 until 40) {
+                for (x in 0 until 50) {
+                    rectangle(x * 20f, y * 20f, 18f, 18f, fills[(x + y) % fills.size])
+                }
+            }
+        }
+        val fillFlushes = renderCalls
+
+        if (++frame == 60) {
+            println("Texture slots: ${slotSettings[setting]}, text: $textFlushes flushes, mixed fills: $fillFlushes flushes")
+            frame = 0
+            setting = (setting + 1) % slotSettings.size
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.darkyen.benchmark
+
+import com.badlogic.gdx.math.MathUtils
+import com.darkyen.processingdx.*
+import com.darkyen.processingdx.functions.Settings
+import java.lang.management.ManagementFactory
+
+/**
+ * Compares per-vertex cost and garbage produced by writing vertices into heap arrays, which are copied on flush,
+ * and by writing them straight into direct buffers, see [DrawBatch.offHeap].
+ * Every scenario is drawn for [FramesPerScenario] frames, then averages are printed and next scenario starts.
+ *
+ * Run by passing `com.darkyen.benchmark.VertexWriterBenchmark` to main.
+ */
+object VertexWriterBenchmark : Applet() {
+
+    override fun Settings.settings() {
+        size(1000, 800)
+    }
+
+    private class Scenario(val name:String, val offHeap:Boolean, val mode:DrawBatch.UploadMode)
+
+    private val scenarios = arrayOf(
+            Scenario("Heap, Direct (before)", false, DrawBatch.UploadMode.Direct),
+            Scenario("Off-heap, Direct", true, DrawBatch.UploadMode.Direct),
+            Scenario("Heap, Ring", false, DrawBatch.UploadMode.Ring),
+            Scenario("Off-heap, Ring", true, DrawBatch.UploadMode.Ring)
+    )
+
+    private val FramesPerScenario = 300
+    private val WarmupFrames = 30
+
+    private val spriteTexture by lazy(LazyThreadSafetyMode.NONE) { texture("wood/American_cherry") }
+    private val SpriteColumns = 100
+    private val SpriteRows = 80
+
+    private val gcBeans = ManagementFactory.getGarbageCollectorMXBeans()
+    private val threadBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+
+    private var scenario = 0
+    private var frame = 0
+    private var writtenVertices = 0L
+    private var nanos = 0L
+    private var startAllocated = 0L
+    private var startCollections = 0L
+
+    private fun collections():Long = gcBeans.sumByLong { Math.max(it.collectionCount, 0L) }
+
+    private fun allocated():Long = threadBean?.getThreadAllocatedBytes(Thread.currentThread().id) ?: 0L
+
+    private inline fun <T> Iterable<T>.sumByLong(selector:(T) -> Long):Long {
+        var sum = 0L
+        for (element in this) sum += selector(element)
+        return sum
+    }
+
+    override fun DrawBatch.draw(delta: Float) {
+        val current = scenarios[scenario]
+        offHeap = current.offHeap
+        uploadMode = current.mode
+
+        if (frame == WarmupFrames) {
+            startAllocated = allocated()
+            startCollections = collections()
+        }
+
+        background(rgb(0.1f))
+        draw {
+            val phase = time.toFloat()
+            val w = width.toFloat() / SpriteColumns
+            val h = height.toFloat() / SpriteRows
+            for (y in 0 until SpriteRows) {
+                for (x in 0 until SpriteColumns) {
+                    val wave = MathUtils.sin(phase + x * 0.2f + y * 0.3f) * 2f
+                    rectangle(x * w + wave, y * h, w - 1f, h - 1f, spriteTexture)
+                }
+            }
+        }
+
+        frame++
+        if (frame > WarmupFrames) {
+            writtenVertices += metrics.vertices
+            nanos += metrics.batchNanos
+        }
+
+        if (frame == WarmupFrames + FramesPerScenario) {
+            val frames = FramesPerScenario.toDouble()
+            println("%-22s %8.2f ns/vertex %10.1f KiB allocated/frame %6d collections".format(
+                    current.name, nanos.toDouble() / Math.max(writtenVertices, 1L),
+                    (allocated() - startAllocated) / frames / 1024.0, collections() - startCollections))
+
+            frame = 0
+            writtenVertices = 0L
+            nanos = 0L
+            scenario = (scenario + 1) % scenarios.size
+        }
+    }
+}
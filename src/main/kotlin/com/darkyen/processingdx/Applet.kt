@@ -6,18 +6,20 @@ import com.badlogic.gdx.Input
 import com.badlogic.gdx.InputProcessor
 import com.badlogic.gdx.backends.lwjgl3.Lwjgl3Application
 import com.badlogic.gdx.backends.lwjgl3.Lwjgl3ApplicationConfiguration
+import com.badlogic.gdx.files.FileHandle
 import com.badlogic.gdx.graphics.GL20
 import com.badlogic.gdx.graphics.OrthographicCamera
-import com.badlogic.gdx.graphics.Pixmap
-import com.badlogic.gdx.graphics.PixmapIO
-import com.badlogic.gdx.graphics.glutils.FrameBuffer
 import com.badlogic.gdx.graphics.glutils.HdpiUtils
 import com.badlogic.gdx.math.MathUtils
 import com.badlogic.gdx.math.Vector2
-import com.badlogic.gdx.utils.ScreenUtils
+import com.badlogic.gdx.utils.Align
 import com.badlogic.gdx.utils.viewport.ScreenViewport
+import com.darkyen.processingdx.font.Font
+import com.darkyen.processingdx.font.GlyphLayout
 import com.darkyen.processingdx.functions.General
 import com.darkyen.processingdx.functions.Settings
+import java.io.Writer
+import java.util.concurrent.CompletableFuture
 import java.util.*
 
 /**
@@ -75,8 +77,31 @@ open class Applet : General {
         override fun keyDown(keycode: Int): Boolean {
             if (keycode == Input.Keys.F3) {
                 println("FPS: ${Gdx.graphics.framesPerSecond}")
+                showMetrics = !showMetrics
             } else if (keycode == Input.Keys.F4) {
-                screenshot("${this@Applet.javaClass.simpleName}-${System.currentTimeMillis()}.png")
+                screenshot("${this@Applet.javaClass.simpleName}-${System.currentTimeMillis()}.png").whenComplete { file, error ->
+                    if (file != null) {
+                        println("Screenshot taken ${file.file().canonicalPath}")
+                    } else if (error != null) {
+                        System.err.println("Screenshot failed: $error")
+                    }
+                }
+            } else if (keycode == Input.Keys.F5) {
+                if (metricsCsv == null) {
+                    recordMetrics("${this@Applet.javaClass.simpleName}-${System.currentTimeMillis()}.csv")
+                } else {
+                    recordMetrics(null)
+                }
+            } else if (keycode == Input.Keys.F6) {
+                overdrawHeatmap = !overdrawHeatmap
+            } else if (keycode == Input.Keys.F7) {
+                if (frameRecorder == null) {
+                    recordFrames("${this@Applet.javaClass.simpleName}-${System.currentTimeMillis()}")
+                } else {
+                    recordFrames(null)
+                }
+            } else if (keycode == Input.Keys.F8) {
+                renderPoster("${this@Applet.javaClass.simpleName}-${System.currentTimeMillis()}.png", 4f)
             }
 
             eventProcessed = true
@@ -108,7 +133,7 @@ open class Applet : General {
             return eventProcessed
         }
 
-        private var screenFramebuffer:FrameBuffer? = null
+        private val canvas by lazy(LazyThreadSafetyMode.NONE) { ReusableFramebuffer(this@Applet.batch, true) }
         private var resizeScreenFramebuffer = true
 
         override fun create() {
@@ -116,9 +141,9 @@ open class Applet : General {
 
             batch = if (separateCanvas) {
                 canvasViewport.update(width, height, true)
-                DrawBatch(canvasViewport)
+                DrawBatch(canvasViewport, settings.batchSize, wideIndices = settings.wideIndices)
             } else {
-                DrawBatch(windowViewport)
+                DrawBatch(windowViewport, settings.batchSize, wideIndices = settings.wideIndices)
             }
         }
 
@@ -132,6 +157,7 @@ open class Applet : General {
             if (!separateCanvas) {
                 resizeScreenFramebuffer = true
             }
+            redrawRequested = true
 
             this@Applet.resized(width, height, lastW, lastH)
         }
@@ -153,8 +179,9 @@ open class Applet : General {
         private var shouldSetup = true
 
         override fun render() {
-            Gdx.gl20.glClearColor(0.1f, 0.1f, 0.1f, 1f)
-            Gdx.gl20.glClear(GL20.GL_COLOR_BUFFER_BIT or GL20.GL_DEPTH_BUFFER_BIT or GL20.GL_STENCIL_BUFFER_BIT)
+            // Anything could have changed the state since the last frame
+            GLState.invalidate()
+            GLState.resetCounters()
 
             pMouseX = mouseX
             pMouseY = mouseY
@@ -162,9 +189,8 @@ open class Applet : General {
             mouseX = mousePosition.x
             mouseY = mousePosition.y
 
-            val oldFramebuffer = screenFramebuffer
-            val framebuffer:FrameBuffer
-            if (oldFramebuffer == null || resizeScreenFramebuffer) {
+            val canvas = canvas
+            if (canvas.frameBuffer == null || resizeScreenFramebuffer) {
                 val fbWidth:Int
                 val fbHeight:Int
                 if (separateCanvas) {
@@ -175,55 +201,48 @@ open class Applet : General {
                     fbHeight = Gdx.graphics.backBufferHeight
                 }
 
-                framebuffer = FrameBuffer(Pixmap.Format.RGBA8888, fbWidth, fbHeight, false, false)
+                canvas.resize(fbWidth, fbHeight)
                 resizeScreenFramebuffer = false
                 canvasViewport.update(fbWidth, fbHeight)
-            } else {
-                framebuffer = oldFramebuffer
+                canvasPyramid.markDirty()
             }
 
-            framebuffer.begin()
-            if (separateCanvas) {
-                Gdx.gl.glViewport(0, 0, width, height)
-            } else {
-                windowViewport.apply()
-            }
-            if (oldFramebuffer == null) {
-                Gdx.gl20.glClearColor(0f, 0f, 0f, 1f)
-                Gdx.gl20.glClear(GL20.GL_COLOR_BUFFER_BIT or GL20.GL_DEPTH_BUFFER_BIT or GL20.GL_STENCIL_BUFFER_BIT)
-            } else if (oldFramebuffer !== framebuffer) {
-                Gdx.gl20.glClearColor(0f, 0f, 0f, 1f)
-                Gdx.gl20.glClear(GL20.GL_COLOR_BUFFER_BIT or GL20.GL_DEPTH_BUFFER_BIT or GL20.GL_STENCIL_BUFFER_BIT)
-                batch.drawFramebuffer(oldFramebuffer)
-                oldFramebuffer.dispose()
+            // With noLoop, this frame may be here only because of input, which does not change the canvas
+            val redraw = Gdx.graphics.isContinuousRendering || redrawRequested
+            redrawRequested = false
+            if (redraw && overdrawHeatmap) {
+                overdrawCounts.resize(canvas.width, canvas.height)
             }
 
-            if (shouldSetup) {
-                setup()
-                shouldSetup = false
+            canvas.begin()
+            applyCanvasViewport()
+            if (redraw) {
+                drawCanvas(canvas)
             }
 
-            val delta = Gdx.graphics.deltaTime
-            time += delta
-            this@Applet.batch.draw(delta)
-
-            if (scheduledScreenshot != null) {
-                val pixmap = ScreenUtils.getFrameBufferPixmap(0, 0, framebuffer.width, framebuffer.height)
-                val file = Gdx.files.local(scheduledScreenshot)
-                PixmapIO.writePNG(file, pixmap)
-                pixmap.dispose()
-                println("Screnshot taken ${file.file().canonicalPath}")
-
+            val screenshotName = scheduledScreenshot
+            if (screenshotName != null) {
+                screenshotCapture.capture(Gdx.files.local(screenshotName), canvas.width, canvas.height, scheduledScreenshotResult!!)
                 scheduledScreenshot = null
+                scheduledScreenshotResult = null
+            }
+            screenshotCapture.poll()
+
+            val posterName = scheduledPoster
+            if (posterName != null) {
+                scheduledPoster = null
+                val file = Gdx.files.local(posterName)
+                PosterRenderer(this@Applet.batch, scheduledPosterTileWidth, scheduledPosterTileHeight).render(file, width, height, scheduledPosterScale) {
+                    it.draw(0f)
+                }
+                println("Poster rendered ${file.file().canonicalPath}")
             }
 
-            framebuffer.end()
-            this.screenFramebuffer = framebuffer
+            canvas.end()
 
-            HdpiUtils.glViewport(0, 0, Gdx.graphics.width, Gdx.graphics.height)
+            // The buffers are swapped after every render, so the canvas must be presented even when it did not change
+            val presented = if (overdrawHeatmap && overdrawCounted) overdrawCounts else canvas
             if (separateCanvas) {
-                windowViewport.apply()
-
                 val scaledWidth = width * separateCanvasScale
                 val scaledHeight = height * separateCanvasScale
                 val x = if (scaledWidth < windowWidth) {
@@ -237,11 +256,140 @@ open class Applet : General {
                     (windowHeight - scaledHeight) * (mouseY / windowHeight)
                 }
 
-                batch.drawFramebuffer(framebuffer,
-                        x / windowWidth, y / windowHeight,
-                        scaledWidth / windowWidth, scaledHeight / windowHeight)
+                // Canvas redrawn every frame would rebuild the visible tiles every frame too, which costs more than sampling it
+                val tiled = presented === canvas && !Gdx.graphics.isContinuousRendering && canvasPyramid.prepare(canvas, x, y, separateCanvasScale, windowWidth.toFloat(), windowHeight.toFloat())
+                HdpiUtils.glViewport(0, 0, Gdx.graphics.width, Gdx.graphics.height)
+                windowViewport.apply()
+                if (x > 0f || y > 0f || x + scaledWidth < windowWidth || y + scaledHeight < windowHeight) {
+                    GLState.clearColor(0.1f, 0.1f, 0.1f, 1f)
+                    Gdx.gl20.glClear(GL20.GL_COLOR_BUFFER_BIT)
+                }
+                if (tiled) {
+                    canvasPyramid.draw()
+                } else {
+                    batch.drawFramebuffer(presented.frameBuffer!!,
+                            x / windowWidth, y / windowHeight,
+                            scaledWidth / windowWidth, scaledHeight / windowHeight, heatmap = presented !== canvas,
+                            u2 = presented.u2, v2 = presented.v2)
+                }
+            } else {
+                // Canvas covers the whole window, no need to clear it
+                HdpiUtils.glViewport(0, 0, Gdx.graphics.width, Gdx.graphics.height)
+                batch.drawFramebuffer(presented.frameBuffer!!, heatmap = presented !== canvas, u2 = presented.u2, v2 = presented.v2)
+            }
+
+            if (showMetrics) {
+                drawMetricsOverlay()
+            }
+        }
+
+        /** Run the draw pass into the bound [canvas]. */
+        private fun drawCanvas(canvas:ReusableFramebuffer) {
+            if (shouldSetup) {
+                setup()
+                shouldSetup = false
+                if (settings.updateRate > 0) {
+                    startUpdates(settings.updateRate)
+                }
+            }
+            if (updateStepNanos > 0L) {
+                updateAlpha = MathUtils.clamp((System.nanoTime() - lastUpdateNanos).toFloat() / updateStepNanos, 0f, 1f)
+            }
+
+            val frameRecorder = frameRecorder
+            val delta = frameRecorder?.delta ?: Gdx.graphics.deltaTime
+            time += delta
+            val metrics = batch.metrics
+            metrics.reset()
+            if (overdrawHeatmap) beginOverdrawCounting()
+            val drawStart = System.nanoTime()
+            this@Applet.batch.draw(delta)
+            metrics.drawNanos = System.nanoTime() - drawStart
+            overdrawCounted = overdrawHeatmap
+            if (overdrawHeatmap) {
+                endOverdrawCounting(metrics)
+                canvas.begin()
+                applyCanvasViewport()
+            }
+            canvasPyramid.markDirty()
+            metrics.glCalls = GLState.issuedCalls
+            metrics.glCallsElided = GLState.elidedCalls
+            if (frameRecorder != null) {
+                frameRecorder.captureFrame(canvas.width, canvas.height)
+                metrics.recordingFramesPerSecond = frameRecorder.framesPerSecond
+                metrics.recordingQueue = frameRecorder.queueDepth
+            }
+            frameMetrics.set(metrics)
+            writeMetrics()
+        }
+
+        private fun applyCanvasViewport() {
+            if (separateCanvas) {
+                Gdx.gl.glViewport(0, 0, width, height)
             } else {
-                batch.drawFramebuffer(framebuffer)
+                windowViewport.apply()
+            }
+        }
+
+        private val canvasPyramid by lazy(LazyThreadSafetyMode.NONE) { CanvasPyramid(this@Applet.batch) }
+
+        private val overdrawCounts by lazy(LazyThreadSafetyMode.NONE) { ReusableFramebuffer(this@Applet.batch, true) }
+        /** Whether [overdrawCounts] hold counts of the last draw pass */
+        private var overdrawCounted = false
+        private val overdrawReadback = OverdrawReadback()
+
+        /** Bind and clear [overdrawCounts], already resized to the canvas, into which the batch counts overdraw instead of drawing. */
+        private fun beginOverdrawCounting() {
+            val counts = overdrawCounts
+            counts.begin()
+            applyCanvasViewport()
+            GLState.clearColor(0f, 0f, 0f, 0f)
+            Gdx.gl20.glClear(GL20.GL_COLOR_BUFFER_BIT or GL20.GL_STENCIL_BUFFER_BIT)
+            batch.overdraw = true
+            countingOverdraw = true
+        }
+
+        /** Start reading the counts back and store the average and maximum of an earlier frame into [metrics]. */
+        private fun endOverdrawCounting(metrics:FrameMetrics) {
+            val counts = overdrawCounts
+            batch.overdraw = false
+            countingOverdraw = false
+
+            val readback = overdrawReadback
+            readback.read(counts.width, counts.height)
+            metrics.overdrawAverage = readback.average
+            metrics.overdrawMax = readback.max
+            counts.end()
+        }
+
+        private var overlayBatch:DrawBatch? = null
+        private var overlayFont:Font? = null
+        private var overlayLayout:GlyphLayout? = null
+        private val overlayText = StringBuilder()
+
+        private fun drawMetricsOverlay() {
+            val batch = overlayBatch ?: DrawBatch(windowViewport, 4096).apply { overlayBatch = this }
+            val layout = overlayLayout ?: run {
+                val font = Font(Gdx.files.internal("fonts/Runa Sans.stbfont"))
+                overlayFont = font
+                GlyphLayout(font, true).apply { overlayLayout = this }
+            }
+
+            val text = overlayText
+            text.setLength(0)
+            text.append("FPS: ").append(Gdx.graphics.framesPerSecond).append('\n')
+            frameMetrics.appendSummary(text)
+
+            val scale = OverlayTextScale
+            layout.setText(text, rgb(1f), (windowWidth - OverlayPadding * 2f) / scale, Align.left)
+            batch.draw {
+                rectangle(0f, windowHeight - layout.height * scale - OverlayPadding * 2f,
+                        layout.width * scale + OverlayPadding * 2f, layout.height * scale + OverlayPadding * 2f, OverlayBackground)
+                pushMatrix()
+                translate(OverlayPadding, windowHeight - OverlayPadding)
+                scale(scale)
+                layout.draw(this, 0f, 0f)
+                popMatrix()
             }
         }
 
@@ -250,7 +398,17 @@ open class Applet : General {
         }
 
         override fun dispose() {
+            stopUpdates()
+            recordFrames(null)
+            screenshotCapture.dispose()
             this@Applet.batch.dispose()
+            overlayBatch?.dispose()
+            overlayFont?.dispose()
+            canvas.dispose()
+            overdrawCounts.dispose()
+            overdrawReadback.dispose()
+            canvasPyramid.dispose()
+            recordMetrics(null)
         }
     }
 
@@ -261,6 +419,11 @@ open class Applet : General {
 
         var clampMouse = false
 
+        var batchSize = Short.MAX_VALUE.toInt()
+        var wideIndices = false
+
+        var updateRate = 0
+
         override fun size(width: Int, height: Int) {
             this@Applet.windowWidth = width
             this@Applet.windowHeight = height
@@ -287,6 +450,16 @@ open class Applet : General {
         override fun clampMouse() {
             clampMouse = true
         }
+
+        override fun batchSize(vertices: Int, wideIndices: Boolean) {
+            batchSize = vertices
+            this.wideIndices = wideIndices
+        }
+
+        override fun fixedUpdate(updatesPerSecond: Int) {
+            if (updatesPerSecond <= 0) throw IllegalArgumentException("updatesPerSecond must be positive: $updatesPerSecond")
+            updateRate = updatesPerSecond
+        }
     }
 
     val Random = Random()
@@ -320,10 +493,156 @@ open class Applet : General {
 
     var time:Double = 0.0
 
+    /**
+     * How far (0 to 1) was the next fixed [update] when this frame started, measured from the end of the last one.
+     * Use it to interpolate between [TripleBuffer.previous] and [TripleBuffer.current] states.
+     * Always 0 without [Settings.fixedUpdate].
+     */
+    var updateAlpha:Float = 0f
+        private set
+
+    private var updateThread:Thread? = null
+    private var updateStepNanos = 0L
+    @Volatile
+    private var lastUpdateNanos = 0L
+
+    private fun startUpdates(rate:Int) {
+        val step = 1_000_000_000L / rate
+        val dt = 1f / rate
+        updateStepNanos = step
+        lastUpdateNanos = System.nanoTime()
+
+        val thread = Thread({
+            var next = System.nanoTime()
+            try {
+                while (!Thread.currentThread().isInterrupted) {
+                    update(dt)
+                    val now = System.nanoTime()
+                    lastUpdateNanos = now
+                    next += step
+                    val wait = next - now
+                    if (wait > 0L) {
+                        Thread.sleep(wait / 1_000_000L, (wait % 1_000_000L).toInt())
+                    } else if (-wait > step * MaxUpdateLag) {
+                        // Too far behind, skip the missed updates instead of running them all at once
+                        next = now
+                    }
+                }
+            } catch (e:InterruptedException) {
+                // Stopped
+            } catch (e:Throwable) {
+                Gdx.app.postRunnable { throw RuntimeException("Update failed", e) }
+            }
+        }, "${javaClass.simpleName} update")
+        thread.isDaemon = true
+        thread.start()
+        updateThread = thread
+    }
+
+    private fun stopUpdates() {
+        val thread = updateThread ?: return
+        updateThread = null
+        thread.interrupt()
+        thread.join()
+    }
+
     private var scheduledScreenshot:String? = null
+    private var scheduledScreenshotResult:CompletableFuture<FileHandle>? = null
+    private val screenshotCapture = ScreenshotCapture()
+
+    /** Rendering metrics of the last frame */
+    val frameMetrics = FrameMetrics()
+
+    private var showMetrics = false
+
+    /**
+     * Instead of the canvas, show how many times was each of its pixels written to in the last frame,
+     * as colors from black (none) through blue, green, yellow and red (4) to white (8 and more).
+     * Average and maximum are in [frameMetrics], a frame or two late, as they are read back asynchronously.
+     * Clearing by [background] is skipped while it is on. Recordings are not drawn nor counted while it is on.
+     * Toggled by F6.
+     */
+    var overdrawHeatmap = false
+    private var metricsCsv:Writer? = null
+    private val metricsRow = StringBuilder()
 
-    fun screenshot(name:String) {
+    /**
+     * Start appending [frameMetrics] of each frame to given CSV file, or stop if [file] is null.
+     * Toggled by F5, F3 shows them on screen.
+     */
+    fun recordMetrics(file:String?) {
+        metricsCsv?.close()
+        metricsCsv = null
+        if (file != null) {
+            val writer = Gdx.files.local(file).writer(false, "UTF-8")
+            writer.write(FrameMetrics.CsvHeader)
+            writer.write("\n")
+            metricsCsv = writer
+            println("Recording metrics to ${Gdx.files.local(file).file().canonicalPath}")
+        }
+    }
+
+    private fun writeMetrics() {
+        val writer = metricsCsv ?: return
+        val row = metricsRow
+        row.setLength(0)
+        frameMetrics.appendCsvRow(row)
+        row.append('\n')
+        writer.append(row)
+    }
+
+    private var frameRecorder:FrameSequenceRecorder? = null
+
+    /**
+     * Start writing every frame of the canvas as PNG into given [directory], or stop if it is null.
+     * While recording, `draw` gets fixed delta of 1/[framesPerSecond] and [time] advances by it, regardless of how long
+     * the frames really take, so the recording plays at the right speed. Frames are encoded on several threads,
+     * and when they can't keep up, the sketch is slowed down. Rate and queue of the encoding are in [frameMetrics].
+     * Toggled by F7.
+     */
+    fun recordFrames(directory:String?, framesPerSecond:Int = 30) {
+        frameRecorder?.finish()
+        frameRecorder = null
+        if (directory != null) {
+            frameRecorder = FrameSequenceRecorder(Gdx.files.local(directory), framesPerSecond)
+            println("Recording frames to ${Gdx.files.local(directory).file().canonicalPath}")
+        }
+    }
+
+    /**
+     * Save the canvas at the end of this frame as PNG with given [name].
+     * Pixels are read back and encoded asynchronously, over the following frames, so the returned future completes later,
+     * on a background thread. Only the last screenshot scheduled in a frame is taken.
+     */
+    fun screenshot(name:String):CompletableFuture<FileHandle> {
+        scheduledScreenshotResult?.cancel(false)
+        val result = CompletableFuture<FileHandle>()
         scheduledScreenshot = name
+        scheduledScreenshotResult = result
+        return result
+    }
+
+    private var scheduledPoster:String? = null
+    private var scheduledPosterScale = 1f
+    private var scheduledPosterTileWidth = 0
+    private var scheduledPosterTileHeight = 0
+
+    /**
+     * At the end of this frame, render the canvas [scale] times larger than it is, as PNG with given [name].
+     * The poster may be larger than any framebuffer, it is drawn in tiles of at most [tileWidth] x [tileHeight] pixels,
+     * which are streamed into the file a row at a time, so memory use grows only with the poster width
+     * (about `width * 4 * tileHeight` bytes, 40 MB for 20000 pixels wide poster with the default height).
+     * `draw` is called once for every tile with zero delta and must draw the whole image in each call,
+     * what is left on the canvas from previous frames is not part of the poster. Blocks until done.
+     * F8 renders a poster at 4x scale.
+     */
+    fun renderPoster(name:String, scale:Float, tileWidth:Int = 4096, tileHeight:Int = 512) {
+        if (scale <= 0f) throw IllegalArgumentException("scale must be positive, got $scale")
+        if (tileWidth <= 0 || tileHeight <= 0) throw IllegalArgumentException("Tile size must be positive, got $tileWidth x $tileHeight")
+        scheduledPoster = name
+        scheduledPosterScale = scale
+        scheduledPosterTileWidth = tileWidth
+        scheduledPosterTileHeight = tileHeight
     }
 
     open fun Settings.settings() {}
@@ -346,6 +665,14 @@ open class Applet : General {
         exit()
     }
 
+    /**
+     * Advance the simulation by fixed [dt] seconds. Called at fixed rate set by [Settings.fixedUpdate], after [setup],
+     * on its own thread, so that slow simulation does not drop frames and slow frames do not slow down the simulation.
+     * Must not touch GL or the [DrawBatch], hand the state over to [draw] through a [TripleBuffer] instead.
+     * When the updates fall behind by more than a few steps, the missed ones are skipped.
+     */
+    open fun update(dt:Float) {}
+
     private var eventProcessed = false
 
     open fun mousePressed(mouseX:Float, mouseY:Float, button:Int) {
@@ -376,6 +703,9 @@ open class Applet : General {
 
     open fun resized(width:Int, height:Int, previousWidth:Int, previousHeight:Int) {}
 
+    /** Whether draw should run in the next frame even when not looping */
+    private var redrawRequested = true
+
     override final fun exit() {
         Gdx.app.exit()
     }
@@ -389,15 +719,24 @@ open class Applet : General {
     }
 
     override final fun redraw() {
+        redrawRequested = true
         Gdx.graphics.requestRendering()
     }
 
+    private companion object {
+        const val OverlayTextScale = 0.25f
+        /** Steps after which the late fixed updates are skipped */
+        const val MaxUpdateLag = 5
+        const val OverlayPadding = 10f
+        val OverlayBackground = solidColorFill(rgb(0f, 0f, 0f, 0.6f))
+    }
+
     fun start() {
         settings.settings()
         val config = Lwjgl3ApplicationConfiguration()
         config.setTitle("PV256")
         config.useOpenGL3(true, 3, 2)
-        config.setBackBufferConfig(8, 8, 8, 0, 0, 0, 0)
+        config.setBackBufferConfig(8, 8, 8, 0, 0, 8, 0)
         config.useVsync(true)
         config.setHdpiMode(Lwjgl3ApplicationConfiguration.HdpiMode.Logical)
         if (settings.initialFullScreen) {
@@ -0,0 +1,154 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.graphics.Pixmap
+import com.badlogic.gdx.graphics.Texture
+import com.badlogic.gdx.graphics.TextureData
+import com.badlogic.gdx.graphics.g2d.PixmapPacker
+import com.badlogic.gdx.graphics.g2d.TextureRegion
+import com.badlogic.gdx.graphics.glutils.FileTextureData
+import com.badlogic.gdx.graphics.glutils.PixmapTextureData
+import com.badlogic.gdx.utils.Disposable
+import com.badlogic.gdx.utils.ObjectMap
+import com.darkyen.Objects
+
+/**
+ * Packs textures registered by the sketch into few shared pages, so that drawing them does not switch textures.
+ *
+ * Register textures with [add] (or by passing the atlas to [texture]) while loading, then call [pack] once.
+ * When the atlas is set as [DrawBatch.atlas], `rectangle` overloads with [Texture] and [TextureRegion]
+ * draw from the pages instead, with remapped texture coordinates.
+ * Only whole-texture UVs are remapped, so the textures stay usable (and are still used) for repeating fills.
+ *
+ * @param pageSize width and height of each page in pixels
+ * @param padding pixels between packed textures, with duplicated border to prevent bleeding
+ */
+class Atlas(val pageSize:Int = 2048, val padding:Int = 2) : Disposable {
+
+    private val pending = Objects<Texture>()
+    private val pendingMaxSide = com.badlogic.gdx.utils.IntArray()
+    private val regions = ObjectMap<Texture, TextureRegion>()
+    private val pages = Objects<Texture>()
+    private var packed = false
+
+    /** Last result of [regionOf], kept in one object so that it stays consistent when looked up from more threads */
+    private var lastLookup:Lookup? = null
+
+    private class Lookup(val texture:Texture, val region:TextureRegion?)
+
+    /** Amount of pages created by [pack] */
+    val pageCount:Int
+        get() = pages.size
+
+    /** Pixels of the pages that are covered by packed textures */
+    var usedPixels = 0L
+        private set
+
+    /** Fraction of page area covered by packed textures, <0; 1> */
+    val occupancy:Float
+        get() = if (pages.size == 0) 0f else usedPixels.toFloat() / (pages.size.toLong() * pageSize * pageSize)
+
+    /** GPU memory (in bytes, without mipmaps) spent on page pixels that no texture uses */
+    val wastedBytes:Long
+        get() = (pages.size.toLong() * pageSize * pageSize - usedPixels) * BytesPerPixel
+
+    /**
+     * Register texture to be packed by [pack]. Its texture data must be able to produce a [Pixmap] again,
+     * which is true for textures loaded from files and pixmaps.
+     * @param maxSide downscale the packed copy so that neither side is larger than this
+     * @return [texture]
+     */
+    fun add(texture: Texture, maxSide:Int = pageSize):Texture {
+        if (packed) throw IllegalStateException("Atlas is already packed")
+        if (!regions.containsKey(texture) && !pending.contains(texture, true)) {
+            pending.add(texture)
+            pendingMaxSide.add(Math.min(maxSide, pageSize - 2 * padding))
+        }
+        return texture
+    }
+
+    /** Pack all registered textures into pages and upload them. */
+    fun pack() {
+        if (packed) throw IllegalStateException("Atlas is already packed")
+        packed = true
+
+        val packer = PixmapPacker(pageSize, pageSize, Pixmap.Format.RGBA8888, padding, true)
+        for (i in 0 until pending.size) {
+            val pixmap = pixmapOf(pending[i].textureData, pendingMaxSide[i])
+            packer.pack(i.toString(), pixmap)
+            usedPixels += pixmap.width.toLong() * pixmap.height
+            pixmap.dispose()
+        }
+        packer.updatePageTextures(Texture.TextureFilter.Linear, Texture.TextureFilter.Linear, false)
+        GLState.invalidateTextures()
+
+        for (page in packer.pages) {
+            pages.add(page.texture)
+        }
+        for (i in 0 until pending.size) {
+            val name = i.toString()
+            val rect = packer.getRect(name)
+            val page = packer.getPage(name)
+            regions.put(pending[i], TextureRegion(page.texture, rect.x.toInt(), rect.y.toInt(), rect.width.toInt(), rect.height.toInt()))
+        }
+        pending.clear()
+        pendingMaxSide.clear()
+
+        // Pixmaps of pages with texture are kept, textures need them when the context is lost
+        packer.dispose()
+    }
+
+    /** @return where is the [texture] in the atlas, or null if it is not packed in it */
+    fun regionOf(texture: Texture):TextureRegion? {
+        val lastLookup = lastLookup
+        if (lastLookup != null && texture === lastLookup.texture) return lastLookup.region
+        val region = regions.get(texture)
+        this.lastLookup = Lookup(texture, region)
+        return region
+    }
+
+    /** Human readable summary of page use, suitable for printing. */
+    fun report():String {
+        return "Atlas: ${regions.size} textures in $pageCount pages of ${pageSize}x$pageSize, " +
+                "${Math.round(occupancy * 100f)}% occupied, ${wastedBytes / 1024} KiB wasted"
+    }
+
+    override fun dispose() {
+        for (page in pages) {
+            page.dispose()
+        }
+        pages.clear()
+        regions.clear()
+        lastLookup = null
+    }
+
+    private companion object {
+        const val BytesPerPixel = 4
+
+        fun pixmapOf(data: TextureData, maxSide:Int):Pixmap {
+            if (data !is FileTextureData && (data !is PixmapTextureData || data.disposePixmap())) {
+                // Pixmaps of other textures are gone after upload
+                throw IllegalArgumentException("Only textures loaded from files or kept pixmaps can be packed, not $data")
+            }
+            if (!data.isPrepared) data.prepare()
+            val source = data.consumePixmap()
+
+            val scale = Math.min(1f, maxSide.toFloat() / Math.max(source.width, source.height))
+            val result = Pixmap(Math.max(1, (source.width * scale).toInt()), Math.max(1, (source.height * scale).toInt()), Pixmap.Format.RGBA8888)
+            val blending = Pixmap.getBlending()
+            Pixmap.setBlending(Pixmap.Blending.None)
+            if (scale < 1f) {
+                Pixmap.setFilter(Pixmap.Filter.BiLinear)
+                result.drawPixmap(source, 0, 0, source.width, source.height, 0, 0, result.width, result.height)
+                // Filter is global and can't be queried, so it can't be restored, set the libGDX default back
+                Pixmap.setFilter(Pixmap.Filter.NearestNeighbour)
+            } else {
+                // Only converts the format
+                result.drawPixmap(source, 0, 0)
+            }
+            Pixmap.setBlending(blending)
+
+            if (data.disposePixmap()) source.dispose()
+            return result
+        }
+    }
+}
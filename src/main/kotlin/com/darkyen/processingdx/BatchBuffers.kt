@@ -0,0 +1,333 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.graphics.glutils.ShaderProgram
+import com.badlogic.gdx.utils.BufferUtils
+import com.badlogic.gdx.utils.Disposable
+import org.lwjgl.opengl.GL30
+import org.lwjgl.opengl.GL32
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Interleaved layout of vertex attributes.
+ */
+internal class VertexFormat(vararg val attributes: Attribute) {
+    /** Size of the vertex in bytes */
+    val vertexSize:Int
+
+    init {
+        var offset = 0
+        for (attribute in attributes) {
+            attribute.offset = offset
+            offset += attribute.size
+        }
+        vertexSize = offset
+    }
+
+    /**
+     * @param alias name of the attribute in the shader
+     * @param components amount of components (1-4)
+     * @param type GL type of a single component
+     * @param normalized whether integer types should be mapped to <0; 1> (or <-1; 1>)
+     */
+    class Attribute(val alias:String, val components:Int, val type:Int, val normalized:Boolean) {
+        /** Offset in bytes from the start of the vertex, assigned by [VertexFormat] */
+        var offset = 0
+            internal set
+
+        val size:Int
+            get() = components * when (type) {
+                GL20.GL_FLOAT, GL20.GL_INT, GL20.GL_UNSIGNED_INT -> 4
+                GL20.GL_SHORT, GL20.GL_UNSIGNED_SHORT -> 2
+                else -> 1
+            }
+    }
+}
+
+/**
+ * Attribute pointers of one vertex array object, kept set up for the shader that draws from it.
+ */
+internal class AttributePointers(val format: VertexFormat) {
+
+    /** Shader for which the attribute pointers are set up */
+    private var attributesFor:ShaderProgram? = null
+    private val enabledLocations = IntArray(format.attributes.size)
+    private var enabledLocationCount = 0
+
+    /** Point attributes of [shader] into the bound vertex buffer, if they don't point there already.
+     * The vertex array object and the vertex buffer must be bound. */
+    fun setup(shader: ShaderProgram) {
+        if (attributesFor === shader) return
+        attributesFor = shader
+
+        val gl = Gdx.gl
+        for (i in 0 until enabledLocationCount) {
+            gl.glDisableVertexAttribArray(enabledLocations[i])
+        }
+        enabledLocationCount = 0
+
+        val vertexSize = format.vertexSize
+        for (attribute in format.attributes) {
+            val location = shader.getAttributeLocation(attribute.alias)
+            if (location < 0) continue
+            gl.glEnableVertexAttribArray(location)
+            gl.glVertexAttribPointer(location, attribute.components, attribute.type, attribute.normalized, vertexSize, attribute.offset)
+            enabledLocations[enabledLocationCount++] = location
+        }
+    }
+}
+
+/**
+ * GPU side of [DrawBatch]: vertex array object with a vertex and an index buffer.
+ * How the data get to the GPU is decided by [mode].
+ *
+ * @param vertexFloats how many floats can be uploaded in one batch at most
+ * @param indexCount how many indices can be uploaded in one batch at most
+ * @param wideIndices whether the indices are 32 bit (or 16 bit)
+ */
+internal class BatchBuffers(val format: VertexFormat, vertexFloats:Int, indexCount:Int, private val wideIndices:Boolean, val mode: DrawBatch.UploadMode) : Disposable {
+
+    private val indexSize = if (wideIndices) Integer.BYTES else java.lang.Short.BYTES
+
+    private val vertexBufferSize:Int
+    private val indexBufferSize:Int
+
+    private val vao:Int
+    private val vertexBuffer:Int
+    private val indexBuffer:Int
+
+    /** Where in the buffers (in bytes) should the next batch go, used by [DrawBatch.UploadMode.Ring] */
+    private var vertexOffset = 0
+    private var indexOffset = 0
+
+    /** Where in the buffers (in bytes) is the batch being drawn */
+    private var drawVertexOffset = 0
+    private var drawIndexOffset = 0
+
+    private val attributes = AttributePointers(format)
+
+    /** Most quads that fit into one batch */
+    private val quadCapacity = vertexFloats / (format.vertexSize / java.lang.Float.BYTES) / 4
+    /** Static index buffer with indices of [quadCapacity] quads, created on first [drawQuads] */
+    private var quadIndexBuffer = 0
+
+    init {
+        val vertexBatchSize = vertexFloats * java.lang.Float.BYTES
+        val indexBatchSize = indexCount * indexSize
+        if (mode == DrawBatch.UploadMode.Ring) {
+            vertexBufferSize = vertexBatchSize * RingBatches
+            indexBufferSize = indexBatchSize * RingBatches
+        } else {
+            vertexBufferSize = vertexBatchSize
+            indexBufferSize = indexBatchSize
+        }
+
+        val gl = Gdx.gl30
+        val handle = IntArray(1)
+        gl.glGenVertexArrays(1, handle, 0)
+        vao = handle[0]
+        vertexBuffer = gl.glGenBuffer()
+        indexBuffer = gl.glGenBuffer()
+
+        val usage = if (mode == DrawBatch.UploadMode.Direct) GL20.GL_DYNAMIC_DRAW else GL20.GL_STREAM_DRAW
+        gl.glBindVertexArray(vao)
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, vertexBuffer)
+        gl.glBufferData(GL20.GL_ARRAY_BUFFER, vertexBufferSize, null, usage)
+        // Element array binding is a part of VAO state
+        gl.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer)
+        gl.glBufferData(GL20.GL_ELEMENT_ARRAY_BUFFER, indexBufferSize, null, usage)
+        gl.glBindVertexArray(0)
+    }
+
+    /** Used by modes which don't map the buffer, when uploading from arrays */
+    private val vertexStaging:ByteBuffer? by lazy { if (mode == DrawBatch.UploadMode.Ring) null else BufferUtils.newByteBuffer(vertexBufferSize) }
+    private val indexStaging:ByteBuffer? by lazy { if (mode == DrawBatch.UploadMode.Ring) null else BufferUtils.newByteBuffer(indexBufferSize) }
+
+    /**
+     * Upload given vertices and indices and draw them as triangles with given shader, which must be already bound.
+     * @return amount of bytes uploaded to the GPU
+     */
+    fun draw(shader: ShaderProgram, vertices:FloatArray, vertexFloats:Int, indices:ShortArray, indexCount:Int):Int {
+        if (indexCount == 0) return 0
+        val vertexBytes = vertexFloats * java.lang.Float.BYTES
+        val indexBytes = indexCount * java.lang.Short.BYTES
+        bind(shader, vertexBytes, indexBytes)
+        upload(GL20.GL_ARRAY_BUFFER, drawVertexOffset, vertexBytes, vertexStaging) { it.asFloatBuffer().put(vertices, 0, vertexFloats) }
+        upload(GL20.GL_ELEMENT_ARRAY_BUFFER, drawIndexOffset, indexBytes, indexStaging) { it.asShortBuffer().put(indices, 0, indexCount) }
+        drawElements(indexCount, GL20.GL_UNSIGNED_SHORT)
+        return vertexBytes + indexBytes
+    }
+
+    /**
+     * Upload given vertices and 32 bit indices and draw them as triangles with given shader, which must be already bound.
+     * @return amount of bytes uploaded to the GPU
+     */
+    fun draw(shader: ShaderProgram, vertices:FloatArray, vertexFloats:Int, indices:IntArray, indexCount:Int):Int {
+        if (indexCount == 0) return 0
+        val vertexBytes = vertexFloats * java.lang.Float.BYTES
+        val indexBytes = indexCount * Integer.BYTES
+        bind(shader, vertexBytes, indexBytes)
+        upload(GL20.GL_ARRAY_BUFFER, drawVertexOffset, vertexBytes, vertexStaging) { it.asFloatBuffer().put(vertices, 0, vertexFloats) }
+        upload(GL20.GL_ELEMENT_ARRAY_BUFFER, drawIndexOffset, indexBytes, indexStaging) { it.asIntBuffer().put(indices, 0, indexCount) }
+        drawElements(indexCount, GL20.GL_UNSIGNED_INT)
+        return vertexBytes + indexBytes
+    }
+
+    /**
+     * Upload given vertices and indices of the width given at construction straight from direct buffers,
+     * without going through the staging buffers, and draw them as triangles with given shader, which must be already bound.
+     * Position and limit of the buffers are not preserved.
+     * @return amount of bytes uploaded to the GPU
+     */
+    fun draw(shader: ShaderProgram, vertices:ByteBuffer, vertexBytes:Int, indices:ByteBuffer, indexCount:Int):Int {
+        if (indexCount == 0) return 0
+        val indexBytes = indexCount * indexSize
+        bind(shader, vertexBytes, indexBytes)
+        upload(GL20.GL_ARRAY_BUFFER, drawVertexOffset, vertexBytes, vertices)
+        upload(GL20.GL_ELEMENT_ARRAY_BUFFER, drawIndexOffset, indexBytes, indices)
+        drawElements(indexCount, if (wideIndices) GL20.GL_UNSIGNED_INT else GL20.GL_UNSIGNED_SHORT)
+        return vertexBytes + indexBytes
+    }
+
+    /**
+     * Upload given vertices and draw them as quads of 4 consecutive vertices, with indices from a static index buffer.
+     * @return amount of bytes uploaded to the GPU
+     */
+    fun drawQuads(shader: ShaderProgram, vertices:FloatArray, vertexFloats:Int, quadCount:Int):Int {
+        if (quadCount == 0) return 0
+        val vertexBytes = vertexFloats * java.lang.Float.BYTES
+        bind(shader, vertexBytes, 0)
+        upload(GL20.GL_ARRAY_BUFFER, drawVertexOffset, vertexBytes, vertexStaging) { it.asFloatBuffer().put(vertices, 0, vertexFloats) }
+        drawQuadElements(quadCount)
+        return vertexBytes
+    }
+
+    /**
+     * Like [drawQuads], but uploads the vertices straight from a direct buffer.
+     * Position and limit of the buffer are not preserved.
+     * @return amount of bytes uploaded to the GPU
+     */
+    fun drawQuads(shader: ShaderProgram, vertices:ByteBuffer, vertexBytes:Int, quadCount:Int):Int {
+        if (quadCount == 0) return 0
+        bind(shader, vertexBytes, 0)
+        upload(GL20.GL_ARRAY_BUFFER, drawVertexOffset, vertexBytes, vertices)
+        drawQuadElements(quadCount)
+        return vertexBytes
+    }
+
+    /** Bind the buffers, point attributes of [shader] into them and decide where in them will the next batch go. */
+    private fun bind(shader: ShaderProgram, vertexBytes:Int, indexBytes:Int) {
+        val gl = Gdx.gl30
+        gl.glBindVertexArray(vao)
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, vertexBuffer)
+        attributes.setup(shader)
+
+        when (mode) {
+            DrawBatch.UploadMode.Direct, DrawBatch.UploadMode.Orphan -> {
+                if (mode == DrawBatch.UploadMode.Orphan) {
+                    // Detach the storage the GPU may still be reading from, so that the upload does not wait for it
+                    gl.glBufferData(GL20.GL_ARRAY_BUFFER, vertexBufferSize, null, GL20.GL_STREAM_DRAW)
+                    if (indexBytes > 0) gl.glBufferData(GL20.GL_ELEMENT_ARRAY_BUFFER, indexBufferSize, null, GL20.GL_STREAM_DRAW)
+                }
+                drawVertexOffset = 0
+                drawIndexOffset = 0
+            }
+            DrawBatch.UploadMode.Ring -> {
+                if (vertexOffset + vertexBytes > vertexBufferSize || indexOffset + indexBytes > indexBufferSize) {
+                    // Wrapped around, orphan both buffers instead of waiting for the GPU to finish with their start
+                    gl.glBufferData(GL20.GL_ARRAY_BUFFER, vertexBufferSize, null, GL20.GL_STREAM_DRAW)
+                    gl.glBufferData(GL20.GL_ELEMENT_ARRAY_BUFFER, indexBufferSize, null, GL20.GL_STREAM_DRAW)
+                    vertexOffset = 0
+                    indexOffset = 0
+                }
+                drawVertexOffset = vertexOffset
+                drawIndexOffset = indexOffset
+                vertexOffset += vertexBytes
+                indexOffset += indexBytes
+            }
+        }
+    }
+
+    /** Write [bytes] at [offset] of the buffer bound to [target] through [fill],
+     * either into a mapped range or into [staging], which is then uploaded. */
+    private inline fun upload(target:Int, offset:Int, bytes:Int, staging:ByteBuffer?, fill:(ByteBuffer) -> Unit) {
+        if (mode == DrawBatch.UploadMode.Ring) {
+            fill(GL30.glMapBufferRange(target, offset.toLong(), bytes.toLong(), RingMapAccess).order(ByteOrder.nativeOrder()))
+            Gdx.gl30.glUnmapBuffer(target)
+        } else {
+            staging!!.clear()
+            staging.limit(bytes)
+            fill(staging)
+            Gdx.gl30.glBufferSubData(target, offset, bytes, staging)
+        }
+    }
+
+    /** Upload first [bytes] of [data] at [offset] of the buffer bound to [target]. */
+    private fun upload(target:Int, offset:Int, bytes:Int, data:ByteBuffer) {
+        data.clear()
+        data.limit(bytes)
+        if (mode == DrawBatch.UploadMode.Ring) {
+            GL30.glMapBufferRange(target, offset.toLong(), bytes.toLong(), RingMapAccess).put(data)
+            Gdx.gl30.glUnmapBuffer(target)
+        } else {
+            Gdx.gl30.glBufferSubData(target, offset, bytes, data)
+        }
+    }
+
+    /** Draw quads with [quadIndexBuffer], which replaces the index buffer of the vertex array only for this draw. */
+    private fun drawQuadElements(quadCount:Int) {
+        assert(quadCount <= quadCapacity)
+        val gl = Gdx.gl30
+        if (quadIndexBuffer == 0) {
+            quadIndexBuffer = gl.glGenBuffer()
+            gl.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, quadIndexBuffer)
+            val indexData = BufferUtils.newByteBuffer(quadCapacity * 6 * indexSize)
+            for (quad in 0 until quadCapacity) {
+                val vertex = quad * 4
+                putQuadIndex(indexData, vertex)
+                putQuadIndex(indexData, vertex + 1)
+                putQuadIndex(indexData, vertex + 2)
+                putQuadIndex(indexData, vertex + 2)
+                putQuadIndex(indexData, vertex + 3)
+                putQuadIndex(indexData, vertex)
+            }
+            indexData.flip()
+            gl.glBufferData(GL20.GL_ELEMENT_ARRAY_BUFFER, indexData.remaining(), indexData, GL20.GL_STATIC_DRAW)
+        } else {
+            gl.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, quadIndexBuffer)
+        }
+
+        val indexType = if (wideIndices) GL20.GL_UNSIGNED_INT else GL20.GL_UNSIGNED_SHORT
+        GL32.glDrawElementsBaseVertex(GL20.GL_TRIANGLES, quadCount * 6, indexType, 0L, drawVertexOffset / format.vertexSize)
+        gl.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer)
+        gl.glBindVertexArray(0)
+    }
+
+    private fun putQuadIndex(data:ByteBuffer, index:Int) {
+        if (wideIndices) data.putInt(index) else data.putShort(index.toShort())
+    }
+
+    private fun drawElements(indexCount:Int, indexType:Int) {
+        GL32.glDrawElementsBaseVertex(GL20.GL_TRIANGLES, indexCount, indexType, drawIndexOffset.toLong(), drawVertexOffset / format.vertexSize)
+        Gdx.gl30.glBindVertexArray(0)
+    }
+
+    override fun dispose() {
+        val gl = Gdx.gl30
+        gl.glDeleteBuffer(vertexBuffer)
+        gl.glDeleteBuffer(indexBuffer)
+        if (quadIndexBuffer != 0) gl.glDeleteBuffer(quadIndexBuffer)
+        gl.glDeleteVertexArrays(1, intArrayOf(vao), 0)
+    }
+
+    private companion object {
+        /** How many full batches fit into the buffers in [DrawBatch.UploadMode.Ring] before they wrap around */
+        const val RingBatches = 4
+
+        /** The written range is not used by any pending draw (we only ever move forward or orphan),
+         * so there is no need for the driver to synchronize. */
+        const val RingMapAccess = GL30.GL_MAP_WRITE_BIT or GL30.GL_MAP_INVALIDATE_RANGE_BIT or GL30.GL_MAP_UNSYNCHRONIZED_BIT
+    }
+}
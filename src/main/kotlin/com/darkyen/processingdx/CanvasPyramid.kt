@@ -0,0 +1,175 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.Pixmap
+import com.badlogic.gdx.graphics.glutils.FrameBuffer
+import com.darkyen.Objects
+
+/**
+ * Mip pyramid of the separate canvas, for presenting it zoomed out without sampling the whole full-size canvas.
+ * Level `k` is the canvas downsampled 2^k times and split into square tiles of [TileSize] pixels.
+ * Tiles of level 1 are averaged from the canvas, tiles of deeper levels from four tiles of the level above them.
+ *
+ * Tiles are created and updated lazily, only when they are visible at the presented level (and their sources),
+ * and only when the canvas changed since they were last updated, see [markDirty].
+ * Any change makes all tiles dirty, so it pays off only when the canvas does not change every frame.
+ */
+internal class CanvasPyramid(private val batch:DrawBatch) {
+
+    private class Level(canvasWidth:Int, canvasHeight:Int, level:Int) {
+        /** Canvas pixels covered by one tile */
+        val span = TileSize shl level
+        val columns = (canvasWidth + span - 1) / span
+        val rows = (canvasHeight + span - 1) / span
+        val tiles = arrayOfNulls<FrameBuffer>(columns * rows)
+        val dirty = BooleanArray(columns * rows).apply { fill(true) }
+    }
+
+    private var canvas:ReusableFramebuffer? = null
+    private var canvasWidth = 0
+    private var canvasHeight = 0
+    /** Level `k` is at index `k - 1` */
+    private val levels = Objects<Level>(true, 8)
+
+    private var presented:Level? = null
+    private var firstColumn = 0
+    private var lastColumn = -1
+    private var firstRow = 0
+    private var lastRow = -1
+    private var presentX = 0f
+    private var presentY = 0f
+    private var presentScale = 1f
+    private var windowWidth = 1f
+    private var windowHeight = 1f
+
+    /** Content of the canvas has changed, all tiles must be updated before they are presented again. */
+    fun markDirty() {
+        for (level in levels) {
+            level.dirty.fill(true)
+        }
+    }
+
+    private fun level(k:Int):Level {
+        while (levels.size < k) {
+            levels.add(Level(canvasWidth, canvasHeight, levels.size + 1))
+        }
+        return levels[k - 1]
+    }
+
+    /**
+     * Choose the level for presenting [canvas] at [x], [y] window pixels, [scale] times larger,
+     * and bring its tiles which will be visible in the window up to date.
+     * Binds other framebuffers and changes the GL viewport.
+     * @return false when the canvas is not zoomed out enough for the pyramid and should be presented directly */
+    fun prepare(canvas:ReusableFramebuffer, x:Float, y:Float, scale:Float, windowWidth:Float, windowHeight:Float):Boolean {
+        if (canvas !== this.canvas || canvas.width != canvasWidth || canvas.height != canvasHeight) {
+            dispose()
+            this.canvas = canvas
+            canvasWidth = canvas.width
+            canvasHeight = canvas.height
+        }
+        presented = null
+
+        var k = 0
+        while (scale * (2 shl k) <= 1f && Math.max(canvasWidth, canvasHeight) shr (k + 1) > 0) {
+            k++
+        }
+        if (k == 0) return false
+
+        val level = level(k)
+        val tileSize = level.span * scale
+        firstColumn = Math.max(0, Math.floor((-x / tileSize).toDouble()).toInt())
+        lastColumn = Math.min(level.columns - 1, Math.floor(((windowWidth - x) / tileSize).toDouble()).toInt())
+        firstRow = Math.max(0, Math.floor((-y / tileSize).toDouble()).toInt())
+        lastRow = Math.min(level.rows - 1, Math.floor(((windowHeight - y) / tileSize).toDouble()).toInt())
+        for (row in firstRow..lastRow) {
+            for (column in firstColumn..lastColumn) {
+                update(k, column, row)
+            }
+        }
+
+        presented = level
+        presentX = x
+        presentY = y
+        presentScale = scale
+        this.windowWidth = windowWidth
+        this.windowHeight = windowHeight
+        return true
+    }
+
+    private fun update(k:Int, column:Int, row:Int) {
+        val level = level(k)
+        val index = row * level.columns + column
+        val existing = level.tiles[index]
+        if (existing != null && !level.dirty[index]) return
+
+        // Sources first, framebuffers can't be nested
+        if (k > 1) {
+            val above = level(k - 1)
+            for (r in row * 2..Math.min(row * 2 + 1, above.rows - 1)) {
+                for (c in column * 2..Math.min(column * 2 + 1, above.columns - 1)) {
+                    update(k - 1, c, r)
+                }
+            }
+        }
+
+        val tile = existing ?: FrameBuffer(Pixmap.Format.RGBA8888, TileSize, TileSize, false, false).apply {
+            GLState.invalidateTextures()
+            level.tiles[index] = this
+        }
+        tile.begin()
+        Gdx.gl.glViewport(0, 0, TileSize, TileSize)
+        // Framebuffer textures are filtered linearly, so sampling between four texels averages them
+        if (k == 1) {
+            val canvas = canvas!!.frameBuffer!!
+            val span = level.span.toFloat()
+            batch.drawFramebuffer(canvas,
+                    u = column * span / canvas.width, v = row * span / canvas.height,
+                    u2 = (column + 1) * span / canvas.width, v2 = (row + 1) * span / canvas.height)
+        } else {
+            val above = level(k - 1)
+            for (r in row * 2..Math.min(row * 2 + 1, above.rows - 1)) {
+                for (c in column * 2..Math.min(column * 2 + 1, above.columns - 1)) {
+                    val source = above.tiles[r * above.columns + c]!!
+                    batch.drawFramebuffer(source, (c - column * 2) * 0.5f, (r - row * 2) * 0.5f, 0.5f, 0.5f)
+                }
+            }
+        }
+        tile.end()
+        level.dirty[index] = false
+    }
+
+    /** Draw the visible tiles chosen by the last successful [prepare], into the window. */
+    fun draw() {
+        val level = presented ?: return
+        val span = level.span
+        val scale = presentScale
+        for (row in firstRow..lastRow) {
+            val y0 = row * span
+            val y1 = Math.min(y0 + span, canvasHeight)
+            for (column in firstColumn..lastColumn) {
+                val x0 = column * span
+                val x1 = Math.min(x0 + span, canvasWidth)
+                batch.drawFramebuffer(level.tiles[row * level.columns + column]!!,
+                        (presentX + x0 * scale) / windowWidth, (presentY + y0 * scale) / windowHeight,
+                        (x1 - x0) * scale / windowWidth, (y1 - y0) * scale / windowHeight,
+                        u2 = (x1 - x0).toFloat() / span, v2 = (y1 - y0).toFloat() / span)
+            }
+        }
+    }
+
+    fun dispose() {
+        for (level in levels) {
+            for (tile in level.tiles) {
+                tile?.dispose()
+            }
+        }
+        levels.clear()
+        canvas = null
+        presented = null
+    }
+
+    private companion object {
+        const val TileSize = 512
+    }
+}
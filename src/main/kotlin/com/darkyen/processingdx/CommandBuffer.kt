@@ -0,0 +1,29 @@
+package com.darkyen.processingdx
+
+/**
+ * Geometry drawn on any thread, to be drawn later by [DrawBatch.submit] on the GL thread.
+ * Create it with [DrawBatch.commandBuffer].
+ *
+ * A buffer must not be drawn into from more threads at once, but different buffers can be filled in parallel,
+ * with the usual shapes, lines and text. Its batch is always [deferred][DrawBatch.deferred], but the order in which
+ * things were drawn is kept. [Recordings][DrawBatch.record] and [instances][DrawBatch.instanced] are not supported.
+ */
+class CommandBuffer internal constructor(parent:DrawBatch) {
+
+    @PublishedApi
+    internal val batch = DrawBatch(parent.viewport, InitialSize, parent.defaultShader, parent.defaultTexture).apply {
+        detached = true
+        atlas = parent.atlas
+        textureSlots = parent.textureSlots
+    }
+
+    /** Draw into this buffer. Geometry that was not [submitted][DrawBatch.submit] yet is kept, new geometry is appended to it. */
+    inline fun <T> draw(func:DrawBatch.()->T):T {
+        return batch.draw(DrawBatch.Blend.None, func)
+    }
+
+    private companion object {
+        /** Vertices of the batch at first, it grows when needed */
+        const val InitialSize = 4096
+    }
+}
@@ -0,0 +1,238 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.graphics.Texture
+import com.badlogic.gdx.graphics.glutils.ShaderProgram
+import com.badlogic.gdx.utils.ObjectIntMap
+import com.darkyen.Objects
+import java.nio.ByteBuffer
+
+/**
+ * Holds geometry of [DrawBatch] while it is [deferred][DrawBatch.deferred] and submits it sorted by layer and state.
+ */
+internal class DeferredQueue(private val vertexFloatFields:Int) {
+
+    /** Geometry drawn with the same state in the same layer, with indices relative to its first vertex. */
+    private class Command {
+        var layer = 0
+        /** Position in the queue, for stable order */
+        var order = 0
+        /** Order of first appearance of the shader and blending */
+        var stateGroup = 0
+        /** Order of first appearance of the texture */
+        var textureGroup = 0
+
+        var shader:ShaderProgram? = null
+        var texture:Texture? = null
+        var blendingEnabled = true
+        var blendSrcFunc = 0
+        var blendDstFunc = 0
+
+        var vertexOffset = 0
+        var vertexCount = 0
+        var indexOffset = 0
+        var indexCount = 0
+
+        fun hasSameBlendState(other:Command):Boolean {
+            return shader === other.shader && blendingEnabled == other.blendingEnabled
+                    && blendSrcFunc == other.blendSrcFunc && blendDstFunc == other.blendDstFunc
+        }
+    }
+
+    private val vertices = com.badlogic.gdx.utils.FloatArray(false, 1024)
+    private val indices = com.badlogic.gdx.utils.IntArray(false, 1024)
+    private val commands = Objects<Command>(false, 64)
+    private val freeCommands = Objects<Command>(false, 64)
+
+    /** First command with each distinct shader and blending */
+    private val stateGroups = Objects<Command>(false, 8)
+    private val textureGroups = ObjectIntMap<Texture>()
+
+    private val slotTextures = arrayOfNulls<Texture>(DrawBatch.TextureSlots)
+
+    private val commandComparator = Comparator<Command> { a, b ->
+        when {
+            a.layer != b.layer -> a.layer.compareTo(b.layer)
+            a.stateGroup != b.stateGroup -> a.stateGroup - b.stateGroup
+            a.textureGroup != b.textureGroup -> a.textureGroup - b.textureGroup
+            else -> a.order - b.order
+        }
+    }
+
+    /** Start a command with given state, whose vertices and indices follow through [addVertices] and [addIndices]. */
+    fun begin(layer:Int, shader:ShaderProgram, texture:Texture, blendingEnabled:Boolean, blendSrcFunc:Int, blendDstFunc:Int) {
+        val command = if (freeCommands.size > 0) freeCommands.pop() else Command()
+        command.layer = layer
+        command.order = commands.size
+        command.shader = shader
+        command.texture = texture
+        command.blendingEnabled = blendingEnabled
+        command.blendSrcFunc = blendSrcFunc
+        command.blendDstFunc = blendDstFunc
+        command.vertexOffset = vertices.size
+        command.indexOffset = indices.size
+
+        var stateGroup = 0
+        while (stateGroup < stateGroups.size && !stateGroups[stateGroup].hasSameBlendState(command)) {
+            stateGroup++
+        }
+        if (stateGroup == stateGroups.size) {
+            stateGroups.add(command)
+        }
+        command.stateGroup = stateGroup
+
+        var textureGroup = textureGroups.get(texture, -1)
+        if (textureGroup == -1) {
+            textureGroup = textureGroups.size
+            textureGroups.put(texture, textureGroup)
+        }
+        command.textureGroup = textureGroup
+
+        commands.add(command)
+    }
+
+    fun addVertices(vertices:FloatArray, count:Int) {
+        this.vertices.addAll(vertices, 0, count)
+        commands.peek().vertexCount += count / vertexFloatFields
+    }
+
+    fun addIndices(indices:ShortArray, count:Int) {
+        val target = this.indices
+        for (i in 0 until count) {
+            target.add(indices[i].toInt() and 0xFFFF)
+        }
+        commands.peek().indexCount += count
+    }
+
+    fun addIndices(indices:IntArray, count:Int) {
+        this.indices.addAll(indices, 0, count)
+        commands.peek().indexCount += count
+    }
+
+    /** Add [count] floats of vertices from the start of [vertices], see [DrawBatch.offHeap]. */
+    fun addVertices(vertices:ByteBuffer, count:Int) {
+        val target = this.vertices
+        target.ensureCapacity(count)
+        for (i in 0 until count) {
+            target.add(vertices.getFloat(i * java.lang.Float.BYTES))
+        }
+        commands.peek().vertexCount += count / vertexFloatFields
+    }
+
+    /** Add [count] indices from the start of [indices], which are 32 bit when [wide], see [DrawBatch.offHeap]. */
+    fun addIndices(indices:ByteBuffer, count:Int, wide:Boolean) {
+        val target = this.indices
+        target.ensureCapacity(count)
+        for (i in 0 until count) {
+            target.add(if (wide) indices.getInt(i * Integer.BYTES) else indices.getShort(i * java.lang.Short.BYTES).toInt() and 0xFFFF)
+        }
+        commands.peek().indexCount += count
+    }
+
+    /**
+     * Draw all queued commands through [batch], which must not be deferred, and clear the queue.
+     * State of the batch is restored afterwards.
+     * @param sort whether to sort commands by layer and state, or keep them in the order in which they were added
+     * @return how many flushes were saved by sorting, compared to drawing the commands in order
+     */
+    fun submit(batch:DrawBatch, textureSlots:Int, sort:Boolean):Int {
+        val commands = commands
+        if (commands.size == 0) return 0
+
+        var saved = 0
+        if (sort) {
+            val unsortedFlushes = countFlushes(textureSlots)
+            commands.sort(commandComparator)
+            saved = unsortedFlushes - countFlushes(textureSlots)
+        }
+
+        val originalShader = batch.shader
+        val originalTexture = batch.texture
+        val originalBlendingEnabled = batch.blendingEnabled
+        val originalBlendSrcFunc = batch.blendSrcFunc
+        val originalBlendDstFunc = batch.blendDstFunc
+
+        // Queued vertices are already transformed
+        batch.pushMatrix()
+        batch.resetMatrix()
+
+        val vertices = vertices.items
+        val indices = indices.items
+        val fields = vertexFloatFields
+        for (command in commands) {
+            val shader = command.shader!!
+            if (batch.shader !== shader) batch.shader = shader
+            batch.blendingEnabled = command.blendingEnabled
+            batch.setBlendFunction(command.blendSrcFunc, command.blendDstFunc)
+            batch.texture = command.texture!!
+
+            batch.expect(command.vertexCount, command.indexCount / 3)
+            var v = command.vertexOffset
+            val vEnd = v + command.vertexCount * fields
+            val base = batch.vIndex / fields
+            while (v < vEnd) {
+                batch.vertex(vertices[v], vertices[v + 1], vertices[v + 2], vertices[v + 3], vertices[v + 4])
+                v += fields
+            }
+            var i = command.indexOffset
+            val iEnd = i + command.indexCount
+            while (i < iEnd) {
+                batch.indices(base + indices[i], base + indices[i + 1], base + indices[i + 2])
+                i += 3
+            }
+        }
+
+        if (batch.shader !== originalShader) batch.shader = originalShader
+        batch.blendingEnabled = originalBlendingEnabled
+        batch.setBlendFunction(originalBlendSrcFunc, originalBlendDstFunc)
+        batch.texture = originalTexture
+        batch.popMatrix()
+
+        clear()
+        return Math.max(saved, 0)
+    }
+
+    /** Predict how many flushes would drawing of [commands] in their current order cause, not counting full batches. */
+    private fun countFlushes(textureSlots:Int):Int {
+        val slotTextures = slotTextures
+        var usedSlots = 0
+        var flushes = 0
+        var previous:Command? = null
+        for (command in commands) {
+            if (previous == null || !previous.hasSameBlendState(command)) {
+                flushes++
+                usedSlots = 0
+            }
+            previous = command
+
+            val texture = command.texture
+            var slot = 0
+            while (slot < usedSlots && slotTextures[slot] !== texture) {
+                slot++
+            }
+            if (slot == usedSlots) {
+                if (usedSlots == textureSlots) {
+                    flushes++
+                    usedSlots = 0
+                }
+                slotTextures[usedSlots++] = texture
+            }
+        }
+        slotTextures.fill(null)
+        return flushes
+    }
+
+    private fun clear() {
+        for (command in commands) {
+            command.shader = null
+            command.texture = null
+            command.vertexCount = 0
+            command.indexCount = 0
+        }
+        freeCommands.addAll(commands)
+        commands.clear()
+        stateGroups.clear()
+        textureGroups.clear()
+        vertices.clear()
+        indices.clear()
+    }
+}
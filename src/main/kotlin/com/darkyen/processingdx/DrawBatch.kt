@@ -5,49 +5,240 @@ import com.badlogic.gdx.graphics.*
 import com.badlogic.gdx.graphics.glutils.FrameBuffer
 import com.badlogic.gdx.graphics.glutils.PixmapTextureData
 import com.badlogic.gdx.graphics.glutils.ShaderProgram
+import com.badlogic.gdx.math.Affine2
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.math.Matrix4
+import com.badlogic.gdx.math.Vector3
+import com.badlogic.gdx.utils.BufferUtils
+import com.badlogic.gdx.utils.FloatArray as Floats
+import com.badlogic.gdx.utils.NumberUtils
 import com.badlogic.gdx.utils.viewport.Viewport
+import com.darkyen.Objects
+import java.nio.ByteBuffer
 
 @Suppress("MemberVisibilityCanPrivate", "unused")
 /**
- *
+ * @param size how many vertices fit into one batch initially, batch holds twice as many indices.
+ *             Batch grows when a single primitive does not fit, and shrinks back to this size
+ *             after it is not needed for a while, see [expect].
+ * @param wideIndices use 32 bit indices from the start, needed when [size] is over 65536
+ * @param offHeap see [DrawBatch.offHeap]
  */
-class DrawBatch(val viewport:Viewport, size:Int = Short.MAX_VALUE.toInt(), defaultShader: ShaderProgram? = null, defaultTexture: Texture? = null) {
+class DrawBatch(val viewport:Viewport, size:Int = Short.MAX_VALUE.toInt(), defaultShader: ShaderProgram? = null, defaultTexture: Texture? = null,
+                uploadMode: UploadMode = UploadMode.Direct, wideIndices:Boolean = false, offHeap:Boolean = false) {
 
-    internal val mesh: Mesh = Mesh(
-            Mesh.VertexDataType.VertexBufferObjectWithVAO, false, Short.MAX_VALUE.toInt(), Short.MAX_VALUE.toInt(),
-            VertexAttribute(VertexAttributes.Usage.Position, 2, ShaderProgram.POSITION_ATTRIBUTE),
-            VertexAttribute(VertexAttributes.Usage.ColorPacked, 4, ShaderProgram.COLOR_ATTRIBUTE),
-            VertexAttribute(VertexAttributes.Usage.TextureCoordinates, 2, ShaderProgram.TEXCOORD_ATTRIBUTE + "0"))
-    internal val vertexFloatFields = mesh.vertexAttributes.vertexSize / java.lang.Float.BYTES
+    init {
+        require(size > 0) { "Batch size must be positive, got $size" }
+        require(wideIndices || size <= MaxNarrowVertices) { "$size vertices need wide indices" }
+    }
 
-    internal val vertices = FloatArray(size * vertexFloatFields)
+    internal val vertexFormat = VertexFormat(
+            VertexFormat.Attribute(ShaderProgram.POSITION_ATTRIBUTE, 2, GL20.GL_FLOAT, false),
+            VertexFormat.Attribute(ShaderProgram.COLOR_ATTRIBUTE, 4, GL20.GL_UNSIGNED_BYTE, true),
+            VertexFormat.Attribute(ShaderProgram.TEXCOORD_ATTRIBUTE + "0", 2, GL20.GL_FLOAT, false),
+            VertexFormat.Attribute(SlotsAttribute, 4, GL20.GL_UNSIGNED_BYTE, false))
+    internal val vertexFloatFields = vertexFormat.vertexSize / java.lang.Float.BYTES
+
+    /** Format of batches which use only the white [defaultTexture], without texture coordinates. */
+    private val untexturedVertexFormat = VertexFormat(
+            VertexFormat.Attribute(ShaderProgram.POSITION_ATTRIBUTE, 2, GL20.GL_FLOAT, false),
+            VertexFormat.Attribute(ShaderProgram.COLOR_ATTRIBUTE, 4, GL20.GL_UNSIGNED_BYTE, true),
+            VertexFormat.Attribute(SlotsAttribute, 4, GL20.GL_UNSIGNED_BYTE, false))
+    private val untexturedVertexFloatFields = untexturedVertexFormat.vertexSize / java.lang.Float.BYTES
+
+    internal var vertices = FloatArray(0)
+    /** Amount of floats written into [vertices] (or [vertexData]) */
     internal var vIndex = 0
-    internal val indices = ShortArray(size)
+    /** Indices, when not [wideIndices] */
+    internal var indices = ShortArray(0)
+    /** Indices, when [wideIndices] */
+    internal var intIndices = IntArray(0)
     internal var iIndex = 0
 
-    val defaultTexture:Texture = defaultTexture ?: createDefaultTexture()
-    private val ownsDefaultTexture = defaultTexture == null
+    /** Used instead of [vertices], [indices] and [intIndices] when [offHeap] */
+    private var vertexData:ByteBuffer? = null
+    private var indexData:ByteBuffer? = null
+
+    /** How many vertices fit into the batch */
+    private var capacity = 0
+    private val initialCapacity = size
+    private val initialWideIndices = wideIndices
+    /** Whether geometry which would not fit into [initialCapacity] was expected since the last [end] */
+    private var oversizedExpected = false
+    /** Draw passes since [oversizedExpected], while grown */
+    private var oversizedUnusedPasses = 0
+
+    /** Whether the batch so far consists only of quads of consecutive vertices, added by [indicesRect].
+     * Their indices are not written, the batch is drawn with a static quad index buffer instead. */
+    private var quadStream = true
+
+    /** Whether the indices are 32 bit, so that a single batch can hold more than 65536 vertices.
+     * Batch switches to them by itself when [expect]ed geometry would not fit otherwise. */
+    var wideIndices = wideIndices
+        private set
 
-    var texture:Texture = this.defaultTexture
+    private val indexCapacity:Int
+        get() = capacity * IndicesPerVertex
+
+    /** Created on first flush, so that batches of [CommandBuffer]s never touch GL */
+    private var buffers:BatchBuffers? = null
+    /** Like [buffers], for batches drawn in [untexturedVertexFormat] */
+    private var untexturedBuffers:BatchBuffers? = null
+    private var untexturedVertices:FloatArray? = null
+    private var untexturedData:ByteBuffer? = null
+
+    /** How are the vertices uploaded to the GPU on [flush]. */
+    var uploadMode:UploadMode = uploadMode
+        set(value) {
+            if (field != value) {
+                flush()
+                field = value
+                disposeBuffers()
+            }
+        }
+
+    /** Whether [vertex] and [indices] write straight into direct buffers, which are then handed to GL without copying.
+     * Otherwise they write into arrays on the heap, which are copied into a direct buffer on [flush]. */
+    var offHeap:Boolean = offHeap
         set(value) {
             if (field != value) {
                 flush()
+                field = value
+                allocate(capacity)
+            }
+        }
+
+    init {
+        allocate(size)
+    }
+
+    /** When above zero, [expect] submits the batch as soon as it holds at least this many vertices,
+     * so that the GPU can start drawing it while the rest of the frame is still being tessellated. */
+    var earlySubmitVertices = 0
+
+    val defaultTexture:Texture = defaultTexture ?: createDefaultTexture()
+    private val ownsDefaultTexture = defaultTexture == null
+
+    /** Textures bound for the current batch, vertices choose between them by their slot. */
+    private val slotTextures = arrayOfNulls<Texture>(TextureSlots).apply { this[0] = this@DrawBatch.defaultTexture }
+    private var usedTextureSlots = 1
+    /** Slot of [texture], written into each vertex. */
+    private var textureSlot = 0
+
+    /** How many textures can be used in one batch before it has to be flushed.
+     * Only shaders with `u_textures` array (like the default one) support more than one. */
+    var textureSlots = TextureSlots
+        set(value) {
+            val slots = MathUtils.clamp(value, 1, TextureSlots)
+            if (field != slots) {
+                flush(FlushCause.Texture)
+                resetTextureSlots()
+                field = slots
+            }
+        }
 
+    private val availableTextureSlots:Int
+        get() = if (shaderHasTextureSlots) textureSlots else 1
+
+    var texture:Texture = this.defaultTexture
+        set(value) {
+            if (field != value && queueing) {
+                // Each deferred command has a single texture, slots are assigned when the queue is submitted
+                flush(FlushCause.Texture)
+                field = value
+                invTexWidth = 1.0f / value.width
+                invTexHeight = 1.0f / value.height
+                resetTextureSlots()
+            } else if (field != value) {
                 field = value
                 invTexWidth = 1.0f / value.width
                 invTexHeight = 1.0f / value.height
+
+                val slotTextures = slotTextures
+                var slot = 0
+                while (slot < usedTextureSlots && slotTextures[slot] != value) {
+                    slot++
+                }
+                if (slot == usedTextureSlots) {
+                    if (slot == availableTextureSlots) {
+                        flush(FlushCause.Texture)
+                        resetTextureSlots()
+                        slot = 0
+                    } else {
+                        slotTextures[slot] = value
+                        usedTextureSlots++
+                    }
+                }
+                textureSlot = slot
             }
         }
     private var invTexWidth = 0f
     private var invTexHeight = 0f
 
-    private var drawing = false
+    /** When set, textures packed in it are drawn from its pages by `rectangle`, so that switching between them does not flush. */
+    var atlas:Atlas? = null
+
+    internal var drawing = false
+        private set
+
+    /** Used by [line] and [lineLoop], each batch has its own so that batches can be drawn into from different threads */
+    internal val lineDrawer = LineDrawer()
+
+    /** Used by [polygon] */
+    internal val polygonFiller = PolygonFiller()
+
+    /**
+     * When deferred, drawn geometry is not flushed in the order in which it is drawn. Instead, it is queued
+     * and sorted by [layer] and then by shader, blending and texture, so that it needs as few flushes as possible.
+     * The queue is submitted on [end] (or when this is turned off).
+     * Only geometry in different layers is guaranteed to be drawn in order, so use the same layer
+     * only for geometry whose order does not matter, like additive blending or not overlapping shapes.
+     */
+    var deferred:Boolean
+        get() = queueing
+        set(value) {
+            if (detached) throw IllegalStateException("Command buffers are always deferred.")
+            if (queueing != value) {
+                if (value) {
+                    flush()
+                    queueing = true
+                } else {
+                    submitDeferred()
+                    queueing = false
+                }
+                transformDirty = true
+            }
+        }
+    private var queueing = false
+    internal val deferredQueue = DeferredQueue(vertexFloatFields)
+
+    /** Set for batches of [CommandBuffer]s, which only queue geometry and don't touch GL */
+    internal var detached = false
+        set(value) {
+            field = value
+            queueing = value
+        }
+
+    /** Layer of the drawn geometry when [deferred], lower layers are drawn first. */
+    var layer = 0
+        set(value) {
+            if (field != value) {
+                if (queueing) flush()
+                field = value
+            }
+        }
+
+    /** Receives flushed batches instead of the GPU while [record]ing */
+    private var recorder:Recorder? = null
+    private val recordingProjection = Matrix4()
+    private val recordingTransform = Matrix4()
 
     var blendingEnabled = true
         set(value) {
             if (field != value) {
-                flush()
+                flush(FlushCause.Blend)
                 field = value
+                updateBlendMode()
             }
         }
     var blendSrcFunc = GL20.GL_SRC_ALPHA
@@ -57,26 +248,119 @@ class DrawBatch(val viewport:Viewport, size:Int = Short.MAX_VALUE.toInt(), defau
 
     fun setBlendFunction(srcFunc: Int = GL20.GL_SRC_ALPHA, dstFunc: Int = GL20.GL_ONE_MINUS_SRC_ALPHA) {
         if (blendSrcFunc == srcFunc && blendDstFunc == dstFunc) return
-        flush()
+        // Both are drawn with the same blend function when premultiplied, everything when counting overdraw
+        if (!overdraw && (blendMode == BlendModeStraight || premultipliedBlendMode(srcFunc, dstFunc) == BlendModeStraight)) {
+            flush(FlushCause.Blend)
+        }
         blendSrcFunc = srcFunc
         blendDstFunc = dstFunc
+        updateBlendMode()
+    }
+
+    /**
+     * Blend in premultiplied alpha. The colors stay the same (they are premultiplied in the shader),
+     * but normal blending (the default [setBlendFunction]) and additive blending (`GL_SRC_ALPHA, GL_ONE`)
+     * are then drawn with the same blend function, so switching between them does not flush the batch.
+     * Other blend functions are not affected. Custom shaders have to handle `a_slots.z`, like the default one.
+     */
+    var premultipliedAlpha = false
+        set(value) {
+            if (field != value) {
+                flush(FlushCause.Blend)
+                field = value
+                updateBlendMode()
+            }
+        }
+
+    /**
+     * Instead of colors, count fragments written to each pixel, by adding 1/255 to all channels of the target.
+     * Used by the overdraw heatmap of [Applet]. Geometry is always blended additively, whatever the blend settings.
+     * Custom shaders have to handle `a_slots.z`, like the default one.
+     * Recordings are skipped and not counted, their blend mode is baked into their vertices.
+     */
+    var overdraw = false
+        set(value) {
+            if (field != value) {
+                flush(FlushCause.Blend)
+                field = value
+                updateBlendMode()
+            }
+        }
+
+    /** How the shader should treat the color of vertices, written into each vertex, one of BlendMode constants */
+    private var blendMode = BlendModeStraight
+
+    private fun premultipliedBlendMode(srcFunc:Int, dstFunc:Int):Int {
+        return when {
+            !premultipliedAlpha || !blendingEnabled || srcFunc != GL20.GL_SRC_ALPHA -> BlendModeStraight
+            dstFunc == GL20.GL_ONE_MINUS_SRC_ALPHA -> BlendModePremultiplied
+            dstFunc == GL20.GL_ONE -> BlendModePremultipliedAdditive
+            else -> BlendModeStraight
+        }
     }
 
+    private fun updateBlendMode() {
+        blendMode = if (overdraw) BlendModeOverdraw else premultipliedBlendMode(blendSrcFunc, blendDstFunc)
+        // Must stay below 0x80, see vertex
+        assert(blendMode < 0x80)
+    }
+
+    /** Whether GL blends, which differs from [blendingEnabled] when counting [overdraw] */
+    private val glBlendingEnabled:Boolean
+        get() = blendingEnabled || overdraw
+
+    /** Blend function of GL, which differs from [blendSrcFunc] when [premultipliedAlpha] or counting [overdraw] */
+    private val glBlendSrcFunc:Int
+        get() = if (blendMode == BlendModeStraight) blendSrcFunc else GL20.GL_ONE
+
+    /** Blend function of GL, which differs from [blendDstFunc] when [premultipliedAlpha] or counting [overdraw] */
+    private val glBlendDstFunc:Int
+        get() = when (blendMode) {
+            BlendModeStraight -> blendDstFunc
+            BlendModeOverdraw -> GL20.GL_ONE
+            else -> GL20.GL_ONE_MINUS_SRC_ALPHA
+        }
+
     val defaultShader: ShaderProgram = defaultShader ?: Batch2dShader
 
+    /** Used instead of [defaultShader] for batches which use only the white [defaultTexture],
+     * null when any of them was supplied by the user. */
+    private val untexturedShader: ShaderProgram? = if (defaultShader == null && defaultTexture == null) UntexturedShader else null
+
     var shader: ShaderProgram = this.defaultShader
         set(value) {
             if (drawing) {
-                flush()
-                field.end()
+                flush(FlushCause.Shader)
             }
             field = value
-            if (drawing) {
-                field.begin()
+            shaderHasTextureSlots = value.hasUniform(TexturesUniform)
+            shaderHasTransforms = value.hasUniform(TransformsUniform)
+            transformDirty = true
+            if (drawing && !detached) {
+                GLState.useShader(field)
                 setupMatrices()
             }
         }
 
+    private var shaderHasTextureSlots = shader.hasUniform(TexturesUniform)
+    private var shaderHasTransforms = shader.hasUniform(TransformsUniform)
+
+    /** Current model transform, changed by [translate], [rotate], [scale], [applyMatrix] and [popMatrix] */
+    private val transform = Affine2()
+    private val matrixStack = Objects<Affine2>()
+    private var matrixStackSize = 0
+    /** Set when [transform] changed and its slot has to be assigned by [expect] */
+    private var transformDirty = false
+    /** Transform with which the vertices are being written */
+    private val committedTransform = Affine2()
+    /** Whether [committedTransform] is applied by [vertex], because it can't be applied by the shader */
+    private var cpuTransform = false
+    /** Column major 3x3 matrices of transforms used by the current batch, first one is always identity */
+    private val transformData = FloatArray(TransformSlots * 9).apply { this[0] = 1f; this[4] = 1f; this[8] = 1f }
+    private val transformBuffer = BufferUtils.newFloatBuffer(TransformSlots * 9)
+    private var usedTransformSlots = 1
+    /** Slot of [committedTransform], written into each vertex. */
+    private var transformSlot = 0
 
     /** Number of render calls since the last [.begin].  */
     var renderCalls = 0
@@ -84,15 +368,59 @@ class DrawBatch(val viewport:Viewport, size:Int = Short.MAX_VALUE.toInt(), defau
     /** Number of rendering calls, ever. Will not be reset unless set manually.  */
     var totalRenderCalls = 0
 
-    /** The maximum number of sprites rendered in one batch so far.  */
+    /** Number of render calls since the last [begin] that were saved by sorting [deferred] geometry. */
+    var savedRenderCalls = 0
+
+    /** Number of render calls saved by sorting, ever. Will not be reset unless set manually. */
+    var totalSavedRenderCalls = 0
+
+    /** The maximum number of sprites (counting each 6 indices as one) rendered in one batch so far.  */
     var maxSpritesInBatch = 0
 
+    /** Bytes of vertices and indices uploaded to the GPU since the last [begin]. */
+    var bytesUploaded = 0L
+
+    /** Bytes uploaded, ever. Will not be reset unless set manually. */
+    var totalBytesUploaded = 0L
+
+    /** Nanoseconds spent in [flush] since the last [begin]. */
+    var flushNanos = 0L
+
+    /** Detailed statistics, accumulated until reset by the owner of the batch (like [Applet], every frame). */
+    val metrics = FrameMetrics()
+    private var beginNanos = 0L
+
+    /**
+     * Whether primitives which are completely outside of the view are skipped before they are tessellated,
+     * see [isOutsideView]. Turn off when a custom [shader] moves the vertices.
+     * Geometry of [CommandBuffer]s and [record]ings is never culled, because it may be drawn with a different view.
+     */
+    var culling = true
+
+    /** Bounds of the view in world coordinates, computed on [begin] */
+    private var viewMinX = 0f
+    private var viewMinY = 0f
+    private var viewMaxX = 0f
+    private var viewMaxY = 0f
+    private val viewCorner = Vector3()
+
     fun begin(blend: Blend = Blend.None) {
         if (drawing) throw IllegalStateException("SpriteBatch.end must be called before begin.")
         renderCalls = 0
+        savedRenderCalls = 0
+        bytesUploaded = 0L
+        flushNanos = 0L
+        beginNanos = System.nanoTime()
+        computeViewBounds()
+        clipStack.clear()
+        clipping = false
+        if (detached) {
+            drawing = true
+            return
+        }
 
-        Gdx.gl.glDepthMask(false)
-        shader.begin()
+        GLState.depthMask(false)
+        GLState.useShader(shader)
         setupMatrices()
 
         drawing = true
@@ -102,14 +430,147 @@ class DrawBatch(val viewport:Viewport, size:Int = Short.MAX_VALUE.toInt(), defau
 
     fun end() {
         if (!drawing) throw IllegalStateException("SpriteBatch.begin must be called before end.")
-        if (this.vIndex > 0) flush()
+        submitDeferred()
+        if (this.vIndex > 0) flush(FlushCause.End)
         drawing = false
+        metrics.batchNanos += System.nanoTime() - beginNanos
+        if (capacity > initialCapacity) shrinkWhenUnused()
+        if (detached) return
+
+        GLState.depthMask(true)
+        GLState.blending(false)
+    }
+
+    private fun computeViewBounds() {
+        val inverse = viewport.camera.invProjectionView
+        val corner = viewCorner
+        var minX = Float.POSITIVE_INFINITY
+        var minY = Float.POSITIVE_INFINITY
+        var maxX = Float.NEGATIVE_INFINITY
+        var maxY = Float.NEGATIVE_INFINITY
+        for (i in 0..3) {
+            corner.set(if (i and 1 == 0) -1f else 1f, if (i and 2 == 0) -1f else 1f, 0f).prj(inverse)
+            minX = Math.min(minX, corner.x)
+            minY = Math.min(minY, corner.y)
+            maxX = Math.max(maxX, corner.x)
+            maxY = Math.max(maxY, corner.y)
+        }
+        viewMinX = minX
+        viewMinY = minY
+        viewMaxX = maxX
+        viewMaxY = maxY
+    }
+
+    /**
+     * Check whether axis aligned box at [x], [y] with [width] and [height], grown by [padding] on each side,
+     * ends up completely outside of the view or of the current clip (see [pushClip]) after the current transform is applied.
+     * Primitives for which this returns true don't have to be drawn at all, and are counted in [FrameMetrics.culled].
+     * Always false when [culling] is off.
+     */
+    fun isOutsideView(x:Float, y:Float, width:Float, height:Float, padding:Float = 0f):Boolean {
+        if (!culling) return false
+        // Clip is applied when the geometry is written, view only when it is drawn
+        val viewCulling = !detached && recorder == null
+        if (!viewCulling && !clipping) return false
+        transformedBounds(x - padding, y - padding, x + width + padding, y + height + padding)
+
+        if ((viewCulling && (boundsMaxX < viewMinX || boundsMinX > viewMaxX || boundsMaxY < viewMinY || boundsMinY > viewMaxY))
+                || (clipping && (boundsMaxX < clipMinX || boundsMinX > clipMaxX || boundsMaxY < clipMinY || boundsMinY > clipMaxY))) {
+            metrics.culled++
+            return true
+        }
+        return false
+    }
 
-        val gl = Gdx.gl
-        gl.glDepthMask(true)
-        if (blendingEnabled) gl.glDisable(GL20.GL_BLEND)
+    /** Result of [transformedBounds] */
+    private var boundsMinX = 0f
+    private var boundsMinY = 0f
+    private var boundsMaxX = 0f
+    private var boundsMaxY = 0f
+
+    /** Compute bounds of box with corners [x0], [y0] and [x1], [y1] after the current transform is applied. */
+    private fun transformedBounds(x0:Float, y0:Float, x1:Float, y1:Float) {
+        val t = transform
+        if (t.isIdt) {
+            boundsMinX = Math.min(x0, x1)
+            boundsMinY = Math.min(y0, y1)
+            boundsMaxX = Math.max(x0, x1)
+            boundsMaxY = Math.max(y0, y1)
+        } else {
+            // Extremes of the transformed box are at its corners
+            val ax0 = t.m00 * x0
+            val ax1 = t.m00 * x1
+            val bx0 = t.m01 * y0
+            val bx1 = t.m01 * y1
+            val ay0 = t.m10 * x0
+            val ay1 = t.m10 * x1
+            val by0 = t.m11 * y0
+            val by1 = t.m11 * y1
+            boundsMinX = Math.min(ax0, ax1) + Math.min(bx0, bx1) + t.m02
+            boundsMaxX = Math.max(ax0, ax1) + Math.max(bx0, bx1) + t.m02
+            boundsMinY = Math.min(ay0, ay1) + Math.min(by0, by1) + t.m12
+            boundsMaxY = Math.max(ay0, ay1) + Math.max(by0, by1) + t.m12
+        }
+    }
 
-        shader.end()
+    /** Previous clips saved by [pushClip], 4 floats each, min x, min y, max x and max y */
+    private val clipStack = Floats()
+    /** Whether there is a clip, whose bounds in world coordinates are below */
+    private var clipping = false
+    private var clipMinX = 0f
+    private var clipMinY = 0f
+    private var clipMaxX = 0f
+    private var clipMaxY = 0f
+
+    /**
+     * Clip everything drawn until the matching [popClip] to the rectangle at [x], [y] with [width] and [height],
+     * intersected with the current clip. The rectangle is transformed by the current transform and its bounding box is used,
+     * so the clip is exact only for transforms without rotation.
+     *
+     * Clipping is done on the CPU as the geometry is written, so changing the clip does not flush the batch.
+     * Rectangles written by [indicesRect] right after their four vertices (like sprites and glyphs) are trimmed in place,
+     * including their texture coordinates and colors, other triangles are split at the clip edges.
+     * Geometry outside of the clip is dropped. Like [culling], this does not work with shaders which move the vertices,
+     * and instanced shapes are not clipped.
+     */
+    fun pushClip(x:Float, y:Float, width:Float, height:Float) {
+        val stack = clipStack
+        stack.add(clipMinX)
+        stack.add(clipMinY)
+        stack.add(clipMaxX)
+        stack.add(clipMaxY)
+
+        transformedBounds(x, y, x + width, y + height)
+        if (clipping) {
+            clipMinX = Math.max(clipMinX, boundsMinX)
+            clipMinY = Math.max(clipMinY, boundsMinY)
+            clipMaxX = Math.min(clipMaxX, boundsMaxX)
+            clipMaxY = Math.min(clipMaxY, boundsMaxY)
+        } else {
+            clipMinX = boundsMinX
+            clipMinY = boundsMinY
+            clipMaxX = boundsMaxX
+            clipMaxY = boundsMaxY
+            clipping = true
+        }
+    }
+
+    /** Restore the clip which was in effect before the last [pushClip]. */
+    fun popClip() {
+        val stack = clipStack
+        if (stack.size == 0) throw IllegalStateException("popClip without pushClip")
+        clipMaxY = stack.pop()
+        clipMaxX = stack.pop()
+        clipMinY = stack.pop()
+        clipMinX = stack.pop()
+        clipping = stack.size > 0
+    }
+
+    /** Draw [func] clipped to given rectangle, see [pushClip]. */
+    inline fun clip(x:Float, y:Float, width:Float, height:Float, func:DrawBatch.()->Unit) {
+        pushClip(x, y, width, height)
+        this.func()
+        popClip()
     }
 
     inline fun <T>draw(blend: Blend = Blend.None, func:DrawBatch.()->T):T {
@@ -121,70 +582,499 @@ class DrawBatch(val viewport:Viewport, size:Int = Short.MAX_VALUE.toInt(), defau
 
     fun canExpectWithoutFlush(vCalls: Int, iCalls: Int):Boolean {
         val indices = iCalls * 3
-        return vIndex + vCalls <= this.vertices.size && iIndex + indices <= this.indices.size
+        return vIndex + vCalls * vertexFloatFields <= capacity * vertexFloatFields && iIndex + indices <= indexCapacity
     }
 
-    /** @return true if flushed */
+    /**
+     * Make sure that [vCalls] vertices and [iCalls] triangles fit into the batch, flushing it if they don't.
+     * When they would not fit even into an empty batch, the batch grows (and may switch to [wideIndices]).
+     * It shrinks back after [ShrinkAfterPasses] draw passes without such large geometry.
+     * @return true if flushed */
     fun expect(vCalls:Int, iCalls:Int):Boolean {
-        if (!canExpectWithoutFlush(vCalls, iCalls)) {
-            flush()
-            assert(canExpectWithoutFlush(vCalls, iCalls))
-                {"$vCalls and $iCalls will never fit"}
+        if (clipping) {
+            // Each triangle may be split into up to 5 triangles with 7 new vertices
+            return expectClipped(vCalls + iCalls * 7, iCalls * 5)
+        }
+        return expectClipped(vCalls, iCalls)
+    }
+
+    private fun expectClipped(vCalls:Int, iCalls:Int):Boolean {
+        if (capacity > initialCapacity && (vCalls > initialCapacity || iCalls * 3 > initialCapacity * IndicesPerVertex)) {
+            oversizedExpected = true
+        }
+        if (!canExpectWithoutFlush(vCalls, iCalls)
+                || (earlySubmitVertices > 0 && recorder == null && vIndex >= earlySubmitVertices * vertexFloatFields)) {
+            flush(FlushCause.Capacity)
+            if (!canExpectWithoutFlush(vCalls, iCalls)) {
+                grow(vCalls, iCalls * 3)
+            }
+            if (transformDirty) commitTransform()
             return true
         }
+        if (transformDirty) commitTransform()
         return false
     }
 
-    fun vertex(x:Float, y:Float, color:Float = White, u:Float = 0.5f, v:Float = 0.5f):Short {
-        assert(drawing) {"Not drawing"}
+    /** Reallocate the (empty) batch, so that it can hold at least given amount of vertices and indices.
+     * Switches to [wideIndices] when needed. */
+    private fun grow(vertexCount:Int, indexCount:Int) {
+        assert(vIndex == 0 && iIndex == 0)
+        var size = capacity
+        while (size < vertexCount || size * IndicesPerVertex < indexCount) {
+            size *= 2
+        }
+        if (size > MaxNarrowVertices) {
+            wideIndices = true
+        }
+        oversizedExpected = true
+        allocate(size)
+    }
 
-        val vertices = vertices
+    /** Return to the initial size, when the grown size was not needed for [ShrinkAfterPasses] draw passes. */
+    private fun shrinkWhenUnused() {
+        if (oversizedExpected) {
+            oversizedExpected = false
+            oversizedUnusedPasses = 0
+        } else if (++oversizedUnusedPasses >= ShrinkAfterPasses) {
+            oversizedUnusedPasses = 0
+            wideIndices = initialWideIndices
+            allocate(initialCapacity)
+        }
+    }
 
-        val idx = this.vIndex
-        val vertexIndex = (idx / 5).toShort()
+    /** Allocate storage of the (empty) batch for [size] vertices, on or off heap, depending on [offHeap]. */
+    private fun allocate(size:Int) {
+        assert(vIndex == 0 && iIndex == 0)
+        capacity = size
+        val indexCount = size * IndicesPerVertex
+        if (offHeap) {
+            vertices = FloatArray(0)
+            indices = ShortArray(0)
+            intIndices = IntArray(0)
+            vertexData = BufferUtils.newByteBuffer(size * vertexFormat.vertexSize)
+            indexData = BufferUtils.newByteBuffer(indexCount * if (wideIndices) Integer.BYTES else java.lang.Short.BYTES)
+        } else {
+            vertexData = null
+            indexData = null
+            vertices = FloatArray(size * vertexFloatFields)
+            if (wideIndices) {
+                indices = ShortArray(0)
+                intIndices = IntArray(indexCount)
+            } else {
+                indices = ShortArray(indexCount)
+                intIndices = IntArray(0)
+            }
+        }
+        disposeBuffers()
+        untexturedVertices = null
+        untexturedData = null
+    }
+
+    private fun disposeBuffers() {
+        buffers?.dispose()
+        buffers = null
+        untexturedBuffers?.dispose()
+        untexturedBuffers = null
+    }
 
-        vertices[idx] = x
-        vertices[idx + 1] = y
-        vertices[idx + 2] = color
-        vertices[idx + 3] = u
-        vertices[idx + 4] = v
-        this.vIndex = idx + 5
+    fun vertex(x:Float, y:Float, color:Float = White, u:Float = 0.5f, v:Float = 0.5f):Int {
+        assert(drawing) {"Not drawing"}
+
+        val idx = this.vIndex
+        val vertexIndex = idx / vertexFloatFields
+
+        var vx = x
+        var vy = y
+        if (cpuTransform) {
+            val t = committedTransform
+            vx = t.m00 * x + t.m01 * y + t.m02
+            vy = t.m10 * x + t.m11 * y + t.m12
+        }
+        val slots = textureSlot or (transformSlot shl 8) or (blendMode shl 16)
+
+        val data = vertexData
+        if (data == null) {
+            val vertices = vertices
+            vertices[idx] = vx
+            vertices[idx + 1] = vy
+            vertices[idx + 2] = color
+            vertices[idx + 3] = u
+            vertices[idx + 4] = v
+            // Texture slot, transform slot and blend mode are packed into the low 23 bits (blend mode is at most 3,
+            // it must stay below 0x80), so the bits are a denormal float, which is passed through unchanged
+            vertices[idx + 5] = java.lang.Float.intBitsToFloat(slots)
+        } else {
+            val offset = idx * java.lang.Float.BYTES
+            data.putFloat(offset, vx)
+            data.putFloat(offset + 4, vy)
+            data.putFloat(offset + 8, color)
+            data.putFloat(offset + 12, u)
+            data.putFloat(offset + 16, v)
+            data.putInt(offset + 20, slots)
+        }
+        this.vIndex = idx + 6
 
         return vertexIndex
     }
 
-    fun indices(i1:Short, i2:Short, i3:Short) {
-        val indices = indices
+    fun indices(i1:Int, i2:Int, i3:Int) {
+        if (clipping) {
+            clipTriangle(i1, i2, i3)
+        } else {
+            writeIndices(i1, i2, i3)
+        }
+    }
 
+    private fun writeIndices(i1:Int, i2:Int, i3:Int) {
+        if (quadStream) writeQuadIndices()
         val idx = this.iIndex
-        indices[idx] = i1
-        indices[idx+1] = i2
-        indices[idx+2] = i3
+        val data = indexData
+        if (data != null) {
+            putIndex(data, idx, i1)
+            putIndex(data, idx + 1, i2)
+            putIndex(data, idx + 2, i3)
+        } else if (wideIndices) {
+            val indices = intIndices
+            indices[idx] = i1
+            indices[idx+1] = i2
+            indices[idx+2] = i3
+        } else {
+            val indices = indices
+            indices[idx] = i1.toShort()
+            indices[idx+1] = i2.toShort()
+            indices[idx+2] = i3.toShort()
+        }
         this.iIndex = idx + 3
     }
 
-    fun indicesRect(bl:Short, tl:Short, tr:Short, br:Short) {
-        val indices = indices
-
+    fun indicesRect(bl:Int, tl:Int, tr:Int, br:Int) {
+        if (clipping && !clipRect(bl, tl, tr, br)) return
         val idx = this.iIndex
-        indices[idx] = bl
-        indices[idx+1] = tl
-        indices[idx+2] = tr
-
-        indices[idx+3] = tr
-        indices[idx+4] = br
-        indices[idx+5] = bl
+        if (quadStream) {
+            if (bl == idx / 6 * 4 && tl == bl + 1 && tr == bl + 2 && br == bl + 3) {
+                // Next quad in the stream, its indices are already in the quad index buffer
+                this.iIndex = idx + 6
+                return
+            }
+            writeQuadIndices()
+        }
+        writeRectIndices(idx, bl, tl, tr, br)
         this.iIndex = idx + 6
     }
 
-    internal fun drawFramebuffer(frameBuffer: FrameBuffer, x:Float, y:Float, w:Float, h:Float) {
+    private fun writeRectIndices(idx:Int, bl:Int, tl:Int, tr:Int, br:Int) {
+        val data = indexData
+        if (data != null) {
+            putIndex(data, idx, bl)
+            putIndex(data, idx + 1, tl)
+            putIndex(data, idx + 2, tr)
+
+            putIndex(data, idx + 3, tr)
+            putIndex(data, idx + 4, br)
+            putIndex(data, idx + 5, bl)
+        } else if (wideIndices) {
+            val indices = intIndices
+            indices[idx] = bl
+            indices[idx+1] = tl
+            indices[idx+2] = tr
+
+            indices[idx+3] = tr
+            indices[idx+4] = br
+            indices[idx+5] = bl
+        } else {
+            val indices = indices
+            indices[idx] = bl.toShort()
+            indices[idx+1] = tl.toShort()
+            indices[idx+2] = tr.toShort()
+
+            indices[idx+3] = tr.toShort()
+            indices[idx+4] = br.toShort()
+            indices[idx+5] = bl.toShort()
+        }
+    }
+
+    /** Field [field] of vertex [vertex], from whichever storage is used. */
+    private fun vertexField(vertex:Int, field:Int):Float {
+        val index = vertex * vertexFloatFields + field
+        val data = vertexData
+        return if (data == null) vertices[index] else data.getFloat(index * java.lang.Float.BYTES)
+    }
+
+    private fun setVertexField(vertex:Int, field:Int, value:Float) {
+        val index = vertex * vertexFloatFields + field
+        val data = vertexData
+        if (data == null) vertices[index] = value else data.putFloat(index * java.lang.Float.BYTES, value)
+    }
+
+    /** Store world position of [vertex] into [clipX] and [clipY] at [index]. */
+    private fun clipPosition(vertex:Int, index:Int) {
+        val x = vertexField(vertex, 0)
+        val y = vertexField(vertex, 1)
+        if (transformSlot == 0) {
+            // Identity or already applied by the CPU
+            clipX[index] = x
+            clipY[index] = y
+        } else {
+            val t = committedTransform
+            clipX[index] = t.m00 * x + t.m01 * y + t.m02
+            clipY[index] = t.m10 * x + t.m11 * y + t.m12
+        }
+    }
+
+    private val clipX = FloatArray(4)
+    private val clipY = FloatArray(4)
+
+    /** 0 when the first [count] positions in [clipX] and [clipY] are inside the clip, 1 when outside, -1 when crossing it */
+    private fun clipState(count:Int):Int {
+        var minX = Float.POSITIVE_INFINITY
+        var minY = Float.POSITIVE_INFINITY
+        var maxX = Float.NEGATIVE_INFINITY
+        var maxY = Float.NEGATIVE_INFINITY
+        for (i in 0 until count) {
+            minX = Math.min(minX, clipX[i])
+            minY = Math.min(minY, clipY[i])
+            maxX = Math.max(maxX, clipX[i])
+            maxY = Math.max(maxY, clipY[i])
+        }
+        if (maxX < clipMinX || minX > clipMaxX || maxY < clipMinY || minY > clipMaxY) return 1
+        if (minX >= clipMinX && maxX <= clipMaxX && minY >= clipMinY && maxY <= clipMaxY) return 0
+        return -1
+    }
+
+    /**
+     * Clip rectangle given to [indicesRect].
+     * @return true when its indices should be written, with its vertices possibly trimmed */
+    private fun clipRect(bl:Int, tl:Int, tr:Int, br:Int):Boolean {
+        clipPosition(bl, 0)
+        clipPosition(tl, 1)
+        clipPosition(tr, 2)
+        clipPosition(br, 3)
+        val state = clipState(4)
+        if (state == 0) return true
+
+        // When the vertices were just written for this rectangle only, nothing else can use them
+        val own = bl == vIndex / vertexFloatFields - 4 && tl == bl + 1 && tr == bl + 2 && br == bl + 3
+        if (state == 1) {
+            if (own) vIndex -= 4 * vertexFloatFields
+            return false
+        }
+
+        val x = clipX
+        val y = clipY
+        if (own && x[0] == x[1] && x[2] == x[3] && y[0] == y[3] && y[1] == y[2]) {
+            // Axis aligned, trim it in place, at fractions of its width and height
+            val s0 = clipFraction(x[0], x[3], clipMinX, clipMaxX, false)
+            val s1 = clipFraction(x[0], x[3], clipMinX, clipMaxX, true)
+            val t0 = clipFraction(y[0], y[1], clipMinY, clipMaxY, false)
+            val t1 = clipFraction(y[0], y[1], clipMinY, clipMaxY, true)
+            trimCorner(bl, 0, s0, t0)
+            trimCorner(bl, 1, s0, t1)
+            trimCorner(bl, 2, s1, t1)
+            trimCorner(bl, 3, s1, t0)
+            for (corner in 0..3) {
+                for (field in 0..4) {
+                    setVertexField(bl + corner, field, trimmed[corner * 5 + field])
+                }
+            }
+            return true
+        }
+
+        clipTriangle(bl, tl, tr)
+        clipTriangle(tr, br, bl)
+        return false
+    }
+
+    /** Fraction of the way from [from] to [to] at which the edge at [from] (or [to] when [end]) ends up, when clamped into [min] and [max]. */
+    private fun clipFraction(from:Float, to:Float, min:Float, max:Float, end:Boolean):Float {
+        if (from == to) return if (end) 1f else 0f
+        return (MathUtils.clamp(if (end) to else from, min, max) - from) / (to - from)
+    }
+
+    /** Attributes of the trimmed vertices, 5 (x, y, color, u, v) for each of the 4 */
+    private val trimmed = FloatArray(4 * 5)
+
+    /** Compute attributes of [corner] of the rectangle with bottom left vertex [bl], bilinearly interpolated at [s], [t]. */
+    private fun trimCorner(bl:Int, corner:Int, s:Float, t:Float) {
+        val wBl = (1f - s) * (1f - t)
+        val wTl = (1f - s) * t
+        val wTr = s * t
+        val wBr = s * (1f - t)
+        val out = corner * 5
+        for (field in 0..4) {
+            val vBl = vertexField(bl, field)
+            val vTl = vertexField(bl + 1, field)
+            val vTr = vertexField(bl + 2, field)
+            val vBr = vertexField(bl + 3, field)
+            trimmed[out + field] = if (field == 2) {
+                mixColors(vBl, wBl, vTl, wTl, vTr, wTr, vBr, wBr)
+            } else {
+                vBl * wBl + vTl * wTl + vTr * wTr + vBr * wBr
+            }
+        }
+    }
+
+    /** Polygons of [clipTriangle], up to 7 vertices of 5 floats: world x, y and weights of the 3 triangle vertices */
+    private var clipPolygon = FloatArray(8 * 5)
+    private var clipPolygonSwap = FloatArray(8 * 5)
+
+    /** Write indices of triangle [i1], [i2], [i3], clipped to the clip, adding vertices where it is split. */
+    private fun clipTriangle(i1:Int, i2:Int, i3:Int) {
+        clipPosition(i1, 0)
+        clipPosition(i2, 1)
+        clipPosition(i3, 2)
+        val state = clipState(3)
+        if (state == 0) {
+            writeIndices(i1, i2, i3)
+            return
+        }
+        if (state == 1) return
+
+        var polygon = clipPolygon
+        for (i in 0..2) {
+            val p = i * 5
+            polygon[p] = clipX[i]
+            polygon[p + 1] = clipY[i]
+            polygon[p + 2] = if (i == 0) 1f else 0f
+            polygon[p + 3] = if (i == 1) 1f else 0f
+            polygon[p + 4] = if (i == 2) 1f else 0f
+        }
+        var count = 3
+        var swap = clipPolygonSwap
+        for (edge in 0..3) {
+            count = clipPolygonEdge(polygon, count, swap, edge and 1, when (edge) {
+                0 -> clipMinX
+                1 -> clipMinY
+                2 -> clipMaxX
+                else -> clipMaxY
+            }, edge < 2)
+            val tmp = polygon
+            polygon = swap
+            swap = tmp
+            if (count < 3) return
+        }
+
+        // Triangle fan of the clipped polygon
+        val first = clippedVertex(polygon, 0, i1, i2, i3)
+        var previous = clippedVertex(polygon, 1, i1, i2, i3)
+        for (i in 2 until count) {
+            val current = clippedVertex(polygon, i, i1, i2, i3)
+            writeIndices(first, previous, current)
+            previous = current
+        }
+    }
+
+    /**
+     * One step of Sutherland-Hodgman clipping of [polygon] with [count] vertices against edge at [bound] on [axis] (0 = x, 1 = y).
+     * @param keepAbove whether the part above the bound is kept
+     * @return amount of vertices written into [out] */
+    private fun clipPolygonEdge(polygon:FloatArray, count:Int, out:FloatArray, axis:Int, bound:Float, keepAbove:Boolean):Int {
+        var written = 0
+        var previous = (count - 1) * 5
+        var previousInside = if (keepAbove) polygon[previous + axis] >= bound else polygon[previous + axis] <= bound
+        for (i in 0 until count) {
+            val current = i * 5
+            val currentInside = if (keepAbove) polygon[current + axis] >= bound else polygon[current + axis] <= bound
+            if (currentInside != previousInside) {
+                val t = (bound - polygon[previous + axis]) / (polygon[current + axis] - polygon[previous + axis])
+                val o = written * 5
+                for (f in 0..4) {
+                    out[o + f] = polygon[previous + f] + (polygon[current + f] - polygon[previous + f]) * t
+                }
+                out[o + axis] = bound
+                written++
+            }
+            if (currentInside) {
+                System.arraycopy(polygon, current, out, written * 5, 5)
+                written++
+            }
+            previous = current
+            previousInside = currentInside
+        }
+        return written
+    }
+
+    /** Vertex at [index] of the clipped polygon of triangle [i1], [i2], [i3], reusing the original vertices. */
+    private fun clippedVertex(polygon:FloatArray, index:Int, i1:Int, i2:Int, i3:Int):Int {
+        val p = index * 5
+        val w1 = polygon[p + 2]
+        val w2 = polygon[p + 3]
+        val w3 = polygon[p + 4]
+        if (w1 == 1f) return i1
+        if (w2 == 1f) return i2
+        if (w3 == 1f) return i3
+
+        val vertex = vIndex / vertexFloatFields
+        for (field in 0..4) {
+            val v1 = vertexField(i1, field)
+            val v2 = vertexField(i2, field)
+            val v3 = vertexField(i3, field)
+            setVertexField(vertex, field, if (field == 2) {
+                mixColors(v1, w1, v2, w2, v3, w3, v3, 0f)
+            } else {
+                v1 * w1 + v2 * w2 + v3 * w3
+            })
+        }
+        // Slots
+        setVertexField(vertex, 5, vertexField(i1, 5))
+        vIndex += vertexFloatFields
+        return vertex
+    }
+
+    /** Weighted sum of packed colors. */
+    private fun mixColors(c1:Float, w1:Float, c2:Float, w2:Float, c3:Float, w3:Float, c4:Float, w4:Float):Float {
+        val b1 = NumberUtils.floatToRawIntBits(c1)
+        val b2 = NumberUtils.floatToRawIntBits(c2)
+        val b3 = NumberUtils.floatToRawIntBits(c3)
+        val b4 = NumberUtils.floatToRawIntBits(c4)
+        var result = 0
+        for (shift in 0..24 step 8) {
+            val channel = ((b1 ushr shift) and 0xFF) * w1 + ((b2 ushr shift) and 0xFF) * w2 +
+                    ((b3 ushr shift) and 0xFF) * w3 + ((b4 ushr shift) and 0xFF) * w4
+            result = result or (MathUtils.clamp(Math.round(channel), 0, 0xFF) shl shift)
+        }
+        return NumberUtils.intToFloatColor(result)
+    }
+
+    /** Write indices of the quads skipped while in [quadStream] and leave it. */
+    private fun writeQuadIndices() {
+        quadStream = false
+        for (quad in 0 until iIndex / 6) {
+            val vertex = quad * 4
+            writeRectIndices(quad * 6, vertex, vertex + 1, vertex + 2, vertex + 3)
+        }
+    }
+
+    private fun putIndex(data:ByteBuffer, index:Int, value:Int) {
+        if (wideIndices) {
+            data.putInt(index * Integer.BYTES, value)
+        } else {
+            data.putShort(index * java.lang.Short.BYTES, value.toShort())
+        }
+    }
+
+    /** Index at [index] of the current batch, from whichever storage is used. */
+    private fun indexAt(index:Int):Int {
+        val data = indexData
+        return when {
+            data != null -> if (wideIndices) data.getInt(index * Integer.BYTES) else data.getShort(index * java.lang.Short.BYTES).toInt() and 0xFFFF
+            wideIndices -> intIndices[index]
+            else -> indices[index].toInt() and 0xFFFF
+        }
+    }
+
+    /**
+     * @param u, v, u2, v2 part of [frameBuffer] to draw
+     * @param heatmap when [frameBuffer] contains [overdraw] counts, to show them as colors */
+    internal fun drawFramebuffer(frameBuffer: FrameBuffer, x:Float = 0f, y:Float = 0f, w:Float = 1f, h:Float = 1f, heatmap:Boolean = false,
+                                 u:Float = 0f, v:Float = 0f, u2:Float = 1f, v2:Float = 1f) {
         assert(!drawing)
-        val gl = Gdx.gl
-        val shader = FramebufferShader
+        val shader = if (heatmap) HeatmapShader else FramebufferShader
 
-        gl.glDepthMask(false)
-        shader.begin()
-        frameBuffer.colorBufferTexture.bind(0)
+        GLState.depthMask(false)
+        // Plain copy, the canvas is opaque, so its colors are the same whether they were blended premultiplied or not
+        GLState.blending(false)
+        GLState.useShader(shader)
+        GLState.bindTexture(0, frameBuffer.colorBufferTexture)
         shader.setUniformi("u_texture", 0)
 
         val glX = x * 2f - 1f
@@ -192,127 +1082,593 @@ class DrawBatch(val viewport:Viewport, size:Int = Short.MAX_VALUE.toInt(), defau
         val glX2 = glX + w * 2f
         val glY2 = glY + h * 2f
 
-        vertices[0] = glX
-        vertices[1] = glY
-        vertices[2] = 0f
-        vertices[3] = 0f
-        vertices[4] = 0f
-
-        vertices[5+0] = glX
-        vertices[5+1] = glY2
-        vertices[5+2] = 0f
-        vertices[5+3] = 0f
-        vertices[5+4] = 1f
-
-        vertices[10+0] = glX2
-        vertices[10+1] = glY2
-        vertices[10+2] = 0f
-        vertices[10+3] = 1f
-        vertices[10+4] = 1f
-
-        vertices[15+0] = glX2
-        vertices[15+1] = glY
-        vertices[15+2] = 0f
-        vertices[15+3] = 1f
-        vertices[15+4] = 0f
-
-        indices[0] = 0
-        indices[1] = 1
-        indices[2] = 2
-        indices[3] = 2
-        indices[4] = 3
-        indices[5] = 0
-
-        val mesh = this.mesh
-        mesh.setVertices(vertices, 0, 20)
-        mesh.setIndices(indices, 0, 6)
-        mesh.render(shader, GL20.GL_TRIANGLES, 0, 6)
-
-        shader.end()
-        gl.glDepthMask(true)
-    }
-
-    internal fun drawFramebuffer(frameBuffer: FrameBuffer) {
-        assert(!drawing)
-        val gl = Gdx.gl
-        val shader = FramebufferShader
+        framebufferVertex(0, glX, glY, u, v)
+        framebufferVertex(1, glX, glY2, u, v2)
+        framebufferVertex(2, glX2, glY2, u2, v2)
+        framebufferVertex(3, glX2, glY, u2, v)
+        indicesRect(0, 1, 2, 3)
 
-        gl.glDepthMask(false)
-        shader.begin()
-        frameBuffer.colorBufferTexture.bind(0)
-        shader.setUniformi("u_texture", 0)
+        drawBuffers(shader, 4 * vertexFloatFields, 6, quadStream)
+        iIndex = 0
+        quadStream = true
+
+        GLState.depthMask(true)
+    }
+
+    private fun framebufferVertex(index:Int, x:Float, y:Float, u:Float, v:Float) {
+        val idx = index * vertexFloatFields
+        val data = vertexData
+        if (data == null) {
+            vertices[idx] = x
+            vertices[idx + 1] = y
+            vertices[idx + 2] = 0f
+            vertices[idx + 3] = u
+            vertices[idx + 4] = v
+            vertices[idx + 5] = 0f
+        } else {
+            val offset = idx * java.lang.Float.BYTES
+            data.putFloat(offset, x)
+            data.putFloat(offset + 4, y)
+            data.putFloat(offset + 8, 0f)
+            data.putFloat(offset + 12, u)
+            data.putFloat(offset + 16, v)
+            data.putInt(offset + 20, 0)
+        }
+    }
+
+    /** Upload and draw first [vertexFloats] and [indexCount] of [vertices] and [indices] or [intIndices],
+     * or of [vertexData] and [indexData] when [offHeap].
+     * @param quads whether the vertices are quads, drawn without uploading the indices (see [quadStream])
+     * @return amount of bytes uploaded */
+    private fun drawBuffers(shader: ShaderProgram, vertexFloats:Int, indexCount:Int, quads:Boolean):Int {
+        val buffers = buffers ?: BatchBuffers(vertexFormat, capacity * vertexFloatFields, indexCapacity, wideIndices, uploadMode).apply { buffers = this }
+        val vertexData = vertexData
+        return if (quads) {
+            if (vertexData != null) {
+                buffers.drawQuads(shader, vertexData, vertexFloats * java.lang.Float.BYTES, indexCount / 6)
+            } else {
+                buffers.drawQuads(shader, vertices, vertexFloats, indexCount / 6)
+            }
+        } else if (vertexData != null) {
+            buffers.draw(shader, vertexData, vertexFloats * java.lang.Float.BYTES, indexData!!, indexCount)
+        } else if (wideIndices) {
+            buffers.draw(shader, vertices, vertexFloats, intIndices, indexCount)
+        } else {
+            buffers.draw(shader, vertices, vertexFloats, indices, indexCount)
+        }
+    }
+
+    /** Upload and draw the batch like [drawBuffers], but only with position, color and slots of each vertex. */
+    private fun drawUntexturedBuffers(shader: ShaderProgram, vertexFloats:Int, indexCount:Int, quads:Boolean):Int {
+        val fields = vertexFloatFields
+        val untexturedFields = untexturedVertexFloatFields
+        val capacity = this.capacity * untexturedFields
+        val buffers = untexturedBuffers ?: BatchBuffers(untexturedVertexFormat, capacity, indexCapacity, wideIndices, uploadMode).apply { untexturedBuffers = this }
+
+        val data = vertexData
+        if (data != null) {
+            var untextured = untexturedData
+            if (untextured == null) {
+                untextured = BufferUtils.newByteBuffer(capacity * java.lang.Float.BYTES)!!
+                untexturedData = untextured
+            }
+            val bytes = vertexFloats * java.lang.Float.BYTES
+            val vertexSize = vertexFormat.vertexSize
+            val untexturedSize = untexturedVertexFormat.vertexSize
+            var from = 0
+            var to = 0
+            while (from < bytes) {
+                // Position and color, then slots
+                untextured.putLong(to, data.getLong(from))
+                untextured.putInt(to + 8, data.getInt(from + 8))
+                untextured.putInt(to + 12, data.getInt(from + 20))
+                from += vertexSize
+                to += untexturedSize
+            }
+            return if (quads) {
+                buffers.drawQuads(shader, untextured, to, indexCount / 6)
+            } else {
+                buffers.draw(shader, untextured, to, indexData!!, indexCount)
+            }
+        }
+
+        var untextured = untexturedVertices
+        if (untextured == null || untextured.size < capacity) {
+            untextured = FloatArray(capacity)
+            untexturedVertices = untextured
+        }
 
-        vertices[0] = -1f
-        vertices[1] = -1f
-        vertices[2] = 0f
-        vertices[3] = 0f
-        vertices[4] = 0f
-
-        vertices[5+0] = -1f
-        vertices[5+1] = 1f
-        vertices[5+2] = 0f
-        vertices[5+3] = 0f
-        vertices[5+4] = 1f
-
-        vertices[10+0] = 1f
-        vertices[10+1] = 1f
-        vertices[10+2] = 0f
-        vertices[10+3] = 1f
-        vertices[10+4] = 1f
-
-        vertices[15+0] = 1f
-        vertices[15+1] = -1f
-        vertices[15+2] = 0f
-        vertices[15+3] = 1f
-        vertices[15+4] = 0f
-
-        indices[0] = 0
-        indices[1] = 1
-        indices[2] = 2
-        indices[3] = 2
-        indices[4] = 3
-        indices[5] = 0
-
-        val mesh = this.mesh
-        mesh.setVertices(vertices, 0, 20)
-        mesh.setIndices(indices, 0, 6)
-        mesh.render(shader, GL20.GL_TRIANGLES, 0, 6)
-
-        shader.end()
-        gl.glDepthMask(true)
+        val vertices = vertices
+        var from = 0
+        var to = 0
+        while (from < vertexFloats) {
+            untextured[to] = vertices[from]
+            untextured[to + 1] = vertices[from + 1]
+            untextured[to + 2] = vertices[from + 2]
+            untextured[to + 3] = vertices[from + 5]
+            from += fields
+            to += untexturedFields
+        }
+
+        return if (quads) {
+            buffers.drawQuads(shader, untextured, to, indexCount / 6)
+        } else if (wideIndices) {
+            buffers.draw(shader, untextured, to, intIndices, indexCount)
+        } else {
+            buffers.draw(shader, untextured, to, indices, indexCount)
+        }
     }
 
     fun flush() {
+        flush(FlushCause.Other)
+    }
+
+    private fun flush(cause: FlushCause) {
         if (this.vIndex == 0) return
+        val recorder = recorder
+        if (recorder != null) {
+            recordBatch(recorder)
+            return
+        }
+        if (queueing) {
+            deferBatch()
+            return
+        }
+        val flushStart = System.nanoTime()
 
         renderCalls++
         totalRenderCalls++
 
-        texture.bind()
-        val mesh = this.mesh
-        mesh.setVertices(vertices, 0, this.vIndex)
-        mesh.setIndices(indices, 0, this.iIndex)
+        val slotTextures = slotTextures
+        val untexturedShader = untexturedShader
+        val untextured = untexturedShader != null && shader === defaultShader
+                && usedTextureSlots == 1 && slotTextures[0] === defaultTexture
+        if (!untextured) {
+            bindTextures(slotTextures, usedTextureSlots)
+        }
+        applyBlending(glBlendingEnabled, glBlendSrcFunc, glBlendDstFunc)
+
+        // Vertices which are not a part of any quad can't be drawn through the quad index buffer
+        val quads = quadStream && this.vIndex == this.iIndex / 6 * 4 * vertexFloatFields
+        if (quadStream && !quads) writeQuadIndices()
+
+        val uploaded = if (untextured) {
+            GLState.useShader(untexturedShader)
+            untexturedShader!!.setUniformMatrix("u_projTrans", viewport.camera.combined)
+            uploadTransforms(usedTransformSlots, untexturedShader)
+            val uploaded = drawUntexturedBuffers(untexturedShader, this.vIndex, this.iIndex, quads)
+            GLState.useShader(shader)
+            uploaded
+        } else {
+            if (shaderHasTransforms) {
+                uploadTransforms(usedTransformSlots)
+            }
+            drawBuffers(shader, this.vIndex, this.iIndex, quads)
+        }
+        bytesUploaded += uploaded
+        totalBytesUploaded += uploaded
+        metrics.flushed(cause, vIndex / vertexFloatFields, iIndex, uploaded)
+        maxSpritesInBatch = Math.max(maxSpritesInBatch, iIndex / 6)
+
+        this.vIndex = 0
+        this.iIndex = 0
+        quadStream = true
+        resetTextureSlots()
+        resetTransformSlots()
+
+        val flushTime = System.nanoTime() - flushStart
+        flushNanos += flushTime
+        metrics.submissionNanos += flushTime
+    }
+
+    /** Bind first [count] [textures] to their slots. */
+    private fun bindTextures(textures:Array<out Texture?>, count:Int) {
+        for (slot in count - 1 downTo 0) {
+            GLState.bindTexture(slot, textures[slot]!!)
+        }
+        // Unit 0 is what the rest of gdx expects to be active
+        GLState.activeTexture(0)
+    }
+
+    private fun applyBlending(enabled:Boolean, srcFunc:Int, dstFunc:Int) {
+        GLState.blending(enabled)
+        if (enabled && srcFunc != -1) GLState.blendFunction(srcFunc, dstFunc)
+    }
 
-        if (!blendingEnabled) {
-            Gdx.gl.glDisable(GL20.GL_BLEND)
+    private fun recordBatch(recorder:Recorder) {
+        if (quadStream) writeQuadIndices()
+        val baseVertex = recorder.vertexCount
+        val indexOffset = recorder.indices.size
+        val data = vertexData
+        if (data == null) {
+            recorder.vertices.addAll(vertices, 0, vIndex)
         } else {
-            Gdx.gl.glEnable(GL20.GL_BLEND)
-            if (blendSrcFunc != -1) Gdx.gl.glBlendFunc(blendSrcFunc, blendDstFunc)
+            for (i in 0 until vIndex) {
+                recorder.vertices.add(data.getFloat(i * java.lang.Float.BYTES))
+            }
+        }
+        val recordedIndices = recorder.indices
+        for (i in 0 until iIndex) {
+            recordedIndices.add(baseVertex + indexAt(i))
         }
+        // Vertices already contain the blend mode, so the blend function of GL is recorded
+        recorder.addPart(shader, slotTextures, usedTextureSlots, glBlendingEnabled, glBlendSrcFunc, glBlendDstFunc, indexOffset)
 
-        mesh.render(shader, GL20.GL_TRIANGLES, 0, iIndex)
+        this.vIndex = 0
+        this.iIndex = 0
+        quadStream = true
+        resetTextureSlots()
+        resetTransformSlots()
+    }
+
+    private fun deferBatch() {
+        if (quadStream) writeQuadIndices()
+        val queue = deferredQueue
+        queue.begin(layer, shader, texture, blendingEnabled, blendSrcFunc, blendDstFunc)
+        val data = vertexData
+        if (data != null) {
+            queue.addVertices(data, vIndex)
+            queue.addIndices(indexData!!, iIndex, wideIndices)
+        } else {
+            queue.addVertices(vertices, vIndex)
+            if (wideIndices) {
+                queue.addIndices(intIndices, iIndex)
+            } else {
+                queue.addIndices(indices, iIndex)
+            }
+        }
 
         this.vIndex = 0
         this.iIndex = 0
+        quadStream = true
+        resetTextureSlots()
+        resetTransformSlots()
+    }
+
+    /** Draw everything queued while [deferred]. */
+    private fun submitDeferred() {
+        if (!queueing || detached) return
+        flush()
+        queueing = false
+        // Queued geometry was already clipped by the clip it was drawn under, the current one may be different
+        val wasClipping = clipping
+        clipping = false
+        val saved = deferredQueue.submit(this, availableTextureSlots, true)
+        clipping = wasClipping
+        queueing = true
+        savedRenderCalls += saved
+        totalSavedRenderCalls += saved
+    }
+
+    /** Create a buffer that can be drawn into on another thread and then drawn by [submit]. */
+    fun commandBuffer():CommandBuffer = CommandBuffer(this)
+
+    /**
+     * Draw geometry of [buffers] in the given order and clear them. Must be called while drawing,
+     * on the GL thread, after the buffers are done drawing and their content is visible to this thread
+     * (for example after joining the tasks that filled them).
+     */
+    fun submit(vararg buffers:CommandBuffer) {
+        if (!drawing) throw IllegalStateException("DrawBatch.begin must be called before submit.")
+        if (detached) throw IllegalStateException("Command buffers can't be submitted into command buffers.")
+        submitDeferred()
+        flush()
+        val wasQueueing = queueing
+        queueing = false
+        for (buffer in buffers) {
+            if (buffer.batch.drawing) throw IllegalStateException("Command buffer is still being drawn into.")
+            buffer.batch.deferredQueue.submit(this, availableTextureSlots, false)
+        }
+        queueing = wasQueueing
+    }
+
+    /**
+     * Capture everything drawn in [func] into a [Recording], instead of drawing it.
+     * Must be called while drawing. The recording can be then drawn any amount of times by [draw],
+     * until it is [disposed][Recording.dispose].
+     */
+    inline fun record(func:DrawBatch.()->Unit):Recording {
+        beginRecording()
+        this.func()
+        return endRecording()
+    }
+
+    @PublishedApi
+    internal fun beginRecording() {
+        if (!drawing) throw IllegalStateException("DrawBatch.begin must be called before record.")
+        if (detached) throw IllegalStateException("Command buffers can't record.")
+        if (recorder != null) throw IllegalStateException("Already recording.")
+        flush()
+        recorder = Recorder(vertexFloatFields)
+        transformDirty = true
+    }
+
+    @PublishedApi
+    internal fun endRecording():Recording {
+        flush()
+        val recording = recorder!!.build(vertexFormat)
+        recorder = null
+        transformDirty = true
+        return recording
+    }
+
+    /**
+     * Draw [recording] with the textures, blending and shaders it was recorded with.
+     * @param transform applied to the recorded positions, if any
+     */
+    fun draw(recording: Recording, transform: Affine2? = null) {
+        if (!drawing) throw IllegalStateException("DrawBatch.begin must be called before draw.")
+        if (recorder != null) throw IllegalStateException("Recordings can't be recorded.")
+        if (detached) throw IllegalStateException("Command buffers can't draw recordings.")
+        // Their blend mode is baked into the vertices, they would draw colors instead of counts
+        if (overdraw) return
+        submitDeferred()
+        flush()
+
+        val projection = recordingProjection.set(viewport.camera.combined).mul(recordingTransform.set(this.transform))
+        if (transform != null) {
+            projection.mul(recordingTransform.set(transform))
+        }
+
+        val originalShader = shader
+        var projectionShader:ShaderProgram? = null
+        for (part in recording.parts) {
+            if (part.shader !== shader) {
+                shader = part.shader
+            }
+            if (projectionShader !== shader) {
+                shader.setUniformMatrix("u_projTrans", projection)
+                if (shaderHasTransforms) {
+                    // Recorded vertices are already transformed and all use the identity slot
+                    uploadTransforms(1)
+                }
+                projectionShader = shader
+            }
+
+            val textures = part.textures
+            bindTextures(textures, textures.size)
+            applyBlending(part.blendingEnabled, part.blendSrcFunc, part.blendDstFunc)
+
+            recording.draw(shader, part)
+            renderCalls++
+            totalRenderCalls++
+        }
+
+        if (shader !== originalShader) {
+            shader = originalShader
+        } else {
+            setupMatrices()
+        }
+    }
+
+    /**
+     * Draw many copies of [shape] in a single draw call, added in [func] by [Instances.instance].
+     * Instances are not textured and are drawn with current blending, right away.
+     */
+    inline fun instanced(shape: InstanceShape, func:Instances.()->Unit) {
+        val instances = beginInstances()
+        instances.func()
+        drawInstances(shape, instances)
+    }
+
+    private val instances = Instances()
+    private var instanceBuffers:InstanceBuffers? = null
+
+    @PublishedApi
+    internal fun beginInstances():Instances {
+        if (!drawing) throw IllegalStateException("DrawBatch.begin must be called before instanced.")
+        if (recorder != null) throw IllegalStateException("Instances can't be recorded.")
+        if (detached) throw IllegalStateException("Command buffers can't draw instances.")
+        val instances = instances
+        instances.clear()
+        return instances
+    }
+
+    @PublishedApi
+    internal fun drawInstances(shape: InstanceShape, instances: Instances) {
+        if (instances.count == 0) return
+        submitDeferred()
+        flush()
+        val flushStart = System.nanoTime()
+
+        val originalShader = shader
+        shader = InstancedShader
+        InstancedShader.setUniformMatrix("u_projTrans", recordingProjection.set(viewport.camera.combined).mul(recordingTransform.set(transform)))
+        InstancedShader.setUniformi("u_blendMode", blendMode)
+        val buffers = instanceBuffers ?: InstanceBuffers(InstancedShader).apply { instanceBuffers = this }
+
+        GLState.bindTexture(0, defaultTexture)
+        applyBlending(glBlendingEnabled, glBlendSrcFunc, glBlendDstFunc)
+
+        val uploaded = buffers.draw(shape, instances)
+        renderCalls++
+        totalRenderCalls++
+        bytesUploaded += uploaded
+        totalBytesUploaded += uploaded
+        metrics.bytesUploaded += uploaded
+        instances.clear()
+
+        shader = originalShader
+        val flushTime = System.nanoTime() - flushStart
+        flushNanos += flushTime
+        metrics.submissionNanos += flushTime
+    }
+
+    /** Whether the batch was [deferred] before [beginStencil] */
+    private var stencilQueueing = false
+
+    /**
+     * Start drawing triangles which change only the stencil buffer, counting their windings according to [rule].
+     * Stencil filling must happen in order, so [deferred] geometry drawn so far is submitted first.
+     */
+    internal fun beginStencil(rule: FillRule) {
+        if (detached || recorder != null) throw IllegalStateException("Stencil filled polygons can't be recorded.")
+        submitDeferred()
+        flush(FlushCause.Stencil)
+        stencilQueueing = queueing
+        if (queueing) {
+            queueing = false
+            transformDirty = true
+        }
+
+        GLState.stencilTest(true)
+        GLState.colorMask(false)
+        GLState.stencilFunction(GL20.GL_ALWAYS, 0, 0xFF)
+        when (rule) {
+            FillRule.NonZero -> GLState.stencilOperation(GL20.GL_INCR_WRAP, GL20.GL_DECR_WRAP)
+            FillRule.EvenOdd -> GLState.stencilOperation(GL20.GL_INVERT, GL20.GL_INVERT)
+        }
+    }
+
+    /** Draw following geometry only where the stencil is set, clearing it back to zero. */
+    internal fun beginCover() {
+        flush(FlushCause.Stencil)
+        GLState.colorMask(true)
+        GLState.stencilFunction(GL20.GL_NOTEQUAL, 0, 0xFF)
+        GLState.stencilOperation(GL20.GL_ZERO, GL20.GL_ZERO)
+    }
+
+    internal fun endStencil() {
+        flush(FlushCause.Stencil)
+        GLState.stencilTest(false)
+        if (stencilQueueing) {
+            queueing = true
+            transformDirty = true
+        }
+    }
+
+    /** Save the current transform, to be restored by [popMatrix]. */
+    fun pushMatrix() {
+        if (matrixStackSize == matrixStack.size) {
+            matrixStack.add(Affine2())
+        }
+        matrixStack[matrixStackSize++].set(transform)
+    }
+
+    /** Restore the transform saved by [pushMatrix]. */
+    fun popMatrix() {
+        if (matrixStackSize == 0) throw IllegalStateException("popMatrix without pushMatrix")
+        transform.set(matrixStack[--matrixStackSize])
+        transformDirty = true
+    }
+
+    /** Reset the transform to identity. */
+    fun resetMatrix() {
+        transform.idt()
+        transformDirty = true
+    }
+
+    fun translate(x:Float, y:Float) {
+        transform.translate(x, y)
+        transformDirty = true
+    }
+
+    /** @param degrees counter-clockwise */
+    fun rotate(degrees:Float) {
+        transform.rotate(degrees)
+        transformDirty = true
+    }
+
+    fun scale(x:Float, y:Float = x) {
+        transform.scale(x, y)
+        transformDirty = true
+    }
+
+    /** Multiply the current transform by [matrix] (applied to the geometry first). */
+    fun applyMatrix(matrix: Affine2) {
+        transform.mul(matrix)
+        transformDirty = true
+    }
+
+    /** Transform is applied in the vertex shader, through a transform slot written into each vertex.
+     * Only when it can't be (custom shader, deferred, recording), it is applied to the vertices here. */
+    private fun commitTransform() {
+        transformDirty = false
+        val transform = transform
+        if (transformSlot != 0 || cpuTransform) {
+            val committed = committedTransform
+            if (committed.m00 == transform.m00 && committed.m01 == transform.m01 && committed.m02 == transform.m02
+                    && committed.m10 == transform.m10 && committed.m11 == transform.m11 && committed.m12 == transform.m12
+                    && cpuTransform == (queueing || recorder != null || !shaderHasTransforms)) {
+                return
+            }
+        }
+        committedTransform.set(transform)
+        cpuTransform = false
+        transformSlot = 0
+
+        if (transform.isIdt) return
+        if (queueing || recorder != null || !shaderHasTransforms) {
+            cpuTransform = true
+            return
+        }
+
+        if (usedTransformSlots == TransformSlots) {
+            flush(FlushCause.Transform)
+        }
+        writeTransformSlot(usedTransformSlots, transform)
+        transformSlot = usedTransformSlots
+        usedTransformSlots++
+    }
+
+    private fun writeTransformSlot(slot:Int, transform:Affine2) {
+        val data = transformData
+        val offset = slot * 9
+        data[offset] = transform.m00
+        data[offset + 1] = transform.m10
+        data[offset + 2] = 0f
+        data[offset + 3] = transform.m01
+        data[offset + 4] = transform.m11
+        data[offset + 5] = 0f
+        data[offset + 6] = transform.m02
+        data[offset + 7] = transform.m12
+        data[offset + 8] = 1f
+    }
+
+    /** Upload first [count] slots of [transformData] to the [shader]. */
+    private fun uploadTransforms(count:Int, shader: ShaderProgram = this.shader) {
+        val buffer = transformBuffer
+        buffer.clear()
+        buffer.put(transformData, 0, count * 9)
+        buffer.flip()
+        shader.setUniformMatrix3fv(TransformsUniform, buffer, count, false)
+    }
+
+    /** Leave only the identity and the committed transform in the slots. */
+    private fun resetTransformSlots() {
+        usedTransformSlots = 1
+        if (transformSlot != 0) {
+            writeTransformSlot(1, committedTransform)
+            usedTransformSlots = 2
+            transformSlot = 1
+        }
+    }
+
+    /** Leave only the current [texture] in the slots. */
+    private fun resetTextureSlots() {
+        val slotTextures = slotTextures
+        slotTextures[0] = texture
+        for (i in 1 until usedTextureSlots) {
+            slotTextures[i] = null
+        }
+        usedTextureSlots = 1
+        textureSlot = 0
     }
 
     private fun setupMatrices() {
         shader.setUniformMatrix("u_projTrans", viewport.camera.combined)
-        shader.setUniformi("u_texture", 0)
+        if (shaderHasTextureSlots) {
+            for (slot in 0 until TextureSlots) {
+                shader.setUniformi("u_textures[$slot]", slot)
+            }
+        } else {
+            shader.setUniformi("u_texture", 0)
+        }
     }
 
     fun dispose() {
-        mesh.dispose()
+        disposeBuffers()
+        instanceBuffers?.dispose()
         if (ownsDefaultTexture) defaultTexture.dispose()
     }
 
@@ -321,39 +1677,82 @@ class DrawBatch(val viewport:Viewport, size:Int = Short.MAX_VALUE.toInt(), defau
         val White = Color.WHITE.toFloatBits()
         val Black = Color.BLACK.toFloatBits()
 
+        /** Most vertices a batch can hold without [wideIndices] */
+        const val MaxNarrowVertices = 0x10000
+
+        private const val IndicesPerVertex = 2
+        /** See [expect] */
+        private const val ShrinkAfterPasses = 120
+
+        /** Most textures that can be used in one batch, must match the size of `u_textures` in the default shader. */
+        const val TextureSlots = 8
+
+        /** Texture slot, transform slot and blend mode, as unsigned bytes */
+        private const val SlotsAttribute = "a_slots"
+
+        /** Blend modes of vertices, must match the shaders */
+        private const val BlendModeStraight = 0
+        private const val BlendModePremultiplied = 1
+        private const val BlendModePremultipliedAdditive = 2
+        private const val BlendModeOverdraw = 3
+        private const val TexturesUniform = "u_textures[0]"
+
+        /** Most transforms that can be used in one batch, must match the size of `u_transforms` in the default shader. */
+        const val TransformSlots = 64
+
+        private const val TransformsUniform = "u_transforms[0]"
+
         private fun createDefaultTexture(): Texture {
             val pixmap = Pixmap(1, 1, Pixmap.Format.RGBA8888)
             pixmap.setColor(Color.WHITE)
             pixmap.drawPixel(0, 0)
-            return Texture(PixmapTextureData(pixmap, null, false, true))
+            val texture = Texture(PixmapTextureData(pixmap, null, false, true))
+            GLState.invalidateTextures()
+            return texture
         }
 
         /** Lazy instance of the default shader used by SpriteBatch for GL2 when no shader is specified.  */
         private val Batch2dShader: ShaderProgram by lazy { shader("batch2d") }
 
         private val FramebufferShader:ShaderProgram by lazy { shader("framebuffer") }
+
+        private val HeatmapShader:ShaderProgram by lazy { shader("framebuffer", "heatmap") }
+
+        private val UntexturedShader:ShaderProgram by lazy { shader("batch2d_untextured") }
+
+        private val InstancedShader:ShaderProgram by lazy { shader("instanced", "batch2d") }
     }
 
     enum class Blend {
         None {
             override fun setup() {
-                Gdx.gl.glDisable(GL20.GL_BLEND)
+                GLState.blending(false)
             }
         },
         Blend {
             override fun setup() {
-                Gdx.gl.glEnable(GL20.GL_BLEND)
-                Gdx.gl.glBlendFunc(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA)
+                GLState.blending(true)
+                GLState.blendFunction(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA)
             }
         },
         Additive {
             override fun setup() {
-                Gdx.gl.glEnable(GL20.GL_BLEND)
-                Gdx.gl.glBlendFunc(GL20.GL_SRC_ALPHA, GL20.GL_ONE)
+                GLState.blending(true)
+                GLState.blendFunction(GL20.GL_SRC_ALPHA, GL20.GL_ONE)
             }
         },
         ;
 
         abstract fun setup()
     }
+
+    enum class UploadMode {
+        /** Overwrite the same buffer on every flush. Simple, but the upload has to wait until the GPU is done drawing the previous batch. */
+        Direct,
+        /** Let the driver allocate fresh storage for every flush, the old one is released once the GPU is done with it. */
+        Orphan,
+        /** Write each flush into the next free part of a buffer several batches long, through an unsynchronized mapping.
+         * Buffer is orphaned only when it wraps around. */
+        Ring
+    }
 }
\ No newline at end of file
@@ -0,0 +1,188 @@
+package com.darkyen.processingdx
+
+/**
+ * Why was a batch flushed, see [FrameMetrics.flushes].
+ */
+enum class FlushCause {
+    /** Next geometry did not fit into the batch */
+    Capacity,
+    /** Texture changed and there was no free texture slot */
+    Texture,
+    /** Blending was changed */
+    Blend,
+    /** Shader was changed */
+    Shader,
+    /** Transform changed and there was no free transform slot */
+    Transform,
+    /** Stencil filled [polygon] was started or covered */
+    Stencil,
+    /** Batch ended */
+    End,
+    /** Explicit [DrawBatch.flush] or anything else */
+    Other;
+
+    internal companion object {
+        val Values = values()
+    }
+}
+
+/**
+ * Rendering statistics, collected by [DrawBatch] since the last [reset].
+ * [Applet] resets them every frame and keeps the result of the previous frame in [Applet.frameMetrics].
+ */
+class FrameMetrics {
+
+    /** Vertices uploaded by flushes */
+    var vertices = 0L
+    /** Indices uploaded by flushes */
+    var indices = 0L
+    /** Bytes of vertices and indices uploaded to the GPU */
+    var bytesUploaded = 0L
+
+    private val flushes = IntArray(FlushCause.Values.size)
+
+    /** Nanoseconds spent in the `draw` function of the applet, set by [Applet] */
+    var drawNanos = 0L
+    /** Nanoseconds spent between [DrawBatch.begin] and [DrawBatch.end] */
+    var batchNanos = 0L
+    /** Nanoseconds spent submitting the geometry to GL, in flushes */
+    var submissionNanos = 0L
+
+    /** State changing GL calls issued through [GLState], set by [Applet] */
+    var glCalls = 0
+    /** State changing GL calls dropped by [GLState] as redundant, set by [Applet] */
+    var glCallsElided = 0
+
+    /** Primitives skipped before tessellation, because they were outside of the view, see [DrawBatch.culling] */
+    var culled = 0
+
+    /** Average fragment writes per pixel of the canvas, when the overdraw heatmap of [Applet] is on, set by [Applet] */
+    var overdrawAverage = 0f
+    /** Most fragment writes into a single pixel (at most 255), when the overdraw heatmap of [Applet] is on, set by [Applet] */
+    var overdrawMax = 0
+
+    /** Frames written per second while [Applet.recordFrames] is recording, set by [Applet] */
+    var recordingFramesPerSecond = 0f
+    /** Frames waiting to be written while [Applet.recordFrames] is recording, set by [Applet] */
+    var recordingQueue = 0
+
+    /** Nanoseconds spent in `draw` outside of batches, that is in the sketch code outside of `draw { }` blocks */
+    val userNanos:Long
+        get() = Math.max(0L, drawNanos - batchNanos)
+
+    /**
+     * Nanoseconds spent between [DrawBatch.begin] and [DrawBatch.end], except flushes.
+     * That is tessellation, but also all sketch code inside `draw { }` blocks, like loops around the drawn shapes.
+     */
+    val inBatchNanos:Long
+        get() = Math.max(0L, batchNanos - submissionNanos)
+
+    /** Amount of flushes that reached the GPU */
+    val flushCount:Int
+        get() = flushes.sum()
+
+    /** Amount of flushes with given [cause] */
+    fun flushes(cause: FlushCause):Int = flushes[cause.ordinal]
+
+    internal fun flushed(cause: FlushCause, vertices:Int, indices:Int, bytes:Int) {
+        flushes[cause.ordinal]++
+        this.vertices += vertices
+        this.indices += indices
+        this.bytesUploaded += bytes
+    }
+
+    fun reset() {
+        vertices = 0L
+        indices = 0L
+        bytesUploaded = 0L
+        flushes.fill(0)
+        drawNanos = 0L
+        batchNanos = 0L
+        submissionNanos = 0L
+        glCalls = 0
+        glCallsElided = 0
+        culled = 0
+        overdrawAverage = 0f
+        overdrawMax = 0
+        recordingFramesPerSecond = 0f
+        recordingQueue = 0
+    }
+
+    fun set(other: FrameMetrics) {
+        vertices = other.vertices
+        indices = other.indices
+        bytesUploaded = other.bytesUploaded
+        System.arraycopy(other.flushes, 0, flushes, 0, flushes.size)
+        drawNanos = other.drawNanos
+        batchNanos = other.batchNanos
+        submissionNanos = other.submissionNanos
+        glCalls = other.glCalls
+        glCallsElided = other.glCallsElided
+        culled = other.culled
+        overdrawAverage = other.overdrawAverage
+        overdrawMax = other.overdrawMax
+        recordingFramesPerSecond = other.recordingFramesPerSecond
+        recordingQueue = other.recordingQueue
+    }
+
+    /** Append values in the order of [CsvHeader], without line break. */
+    fun appendCsvRow(out:StringBuilder) {
+        out.append(vertices).append(',')
+        out.append(indices).append(',')
+        out.append(bytesUploaded).append(',')
+        out.append(flushCount)
+        for (count in flushes) {
+            out.append(',').append(count)
+        }
+        out.append(',').append(userNanos)
+        out.append(',').append(inBatchNanos)
+        out.append(',').append(submissionNanos)
+        out.append(',').append(glCalls)
+        out.append(',').append(glCallsElided)
+        out.append(',').append(culled)
+        out.append(',').append(overdrawAverage)
+        out.append(',').append(overdrawMax)
+        out.append(',').append(recordingFramesPerSecond)
+        out.append(',').append(recordingQueue)
+    }
+
+    /** Human readable summary, one value per line, for the overlay. */
+    fun appendSummary(out:StringBuilder) {
+        out.append("Vertices: ").append(vertices).append(" Indices: ").append(indices).append('\n')
+        out.append("Uploaded: ").append(bytesUploaded / 1024).append(" KiB\n")
+        out.append("Flushes: ").append(flushCount)
+        for (cause in FlushCause.Values) {
+            val count = flushes[cause.ordinal]
+            if (count != 0) {
+                out.append(' ').append(cause.name).append(": ").append(count)
+            }
+        }
+        out.append('\n')
+        out.append("GL state calls: ").append(glCalls).append(" Elided: ").append(glCallsElided).append('\n')
+        out.append("Culled: ").append(culled).append('\n')
+        if (overdrawMax > 0) {
+            out.append("Overdraw: ").append(Math.round(overdrawAverage * 100f) / 100f).append(" average ").append(overdrawMax).append(" max\n")
+        }
+        if (recordingFramesPerSecond > 0f || recordingQueue > 0) {
+            out.append("Recording: ").append(Math.round(recordingFramesPerSecond * 10f) / 10f).append(" frames/s Queue: ").append(recordingQueue).append('\n')
+        }
+        out.append("User: ").appendMillis(userNanos)
+                .append(" ms In batches: ").appendMillis(inBatchNanos)
+                .append(" ms Submission: ").appendMillis(submissionNanos).append(" ms")
+    }
+
+    private fun StringBuilder.appendMillis(nanos:Long):StringBuilder {
+        val hundredths = nanos / 10_000L
+        append(hundredths / 100).append('.')
+        val fraction = hundredths % 100
+        if (fraction < 10) append('0')
+        return append(fraction)
+    }
+
+    companion object {
+        /** Header of the rows written by [appendCsvRow] */
+        val CsvHeader = "vertices,indices,bytes,flushes," +
+                FlushCause.Values.joinToString(",") { "flushes_" + it.name.toLowerCase() } +
+                ",user_ns,in_batch_ns,submission_ns,gl_calls,gl_calls_elided,culled,overdraw_avg,overdraw_max,recording_fps,recording_queue"
+    }
+}
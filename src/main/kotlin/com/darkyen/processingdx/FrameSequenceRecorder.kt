@@ -0,0 +1,47 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.files.FileHandle
+
+/**
+ * Writes every frame of the canvas into [directory] as numbered PNG files, see [Applet.recordFrames].
+ * Frames are encoded by a pool of threads. When they can't keep up, capturing blocks,
+ * so that the sketch slows down instead of running out of memory.
+ */
+internal class FrameSequenceRecorder(val directory:FileHandle, framesPerSecond:Int) {
+
+    /** Simulated time between frames, in seconds */
+    val delta = 1f / framesPerSecond
+
+    private val encoders = Math.max(1, Runtime.getRuntime().availableProcessors() - 1)
+    private val capture = ScreenshotCapture(encoders, encoders * 2)
+    private val startNanos = System.nanoTime()
+
+    /** Frames captured so far */
+    var frames = 0
+        private set
+
+    /** Frames captured but not written yet */
+    val queueDepth:Int
+        get() = capture.inFlight
+
+    /** Frames written per second of real time, since the start */
+    val framesPerSecond:Float
+        get() = capture.writtenCount / Math.max((System.nanoTime() - startNanos) / 1_000_000_000f, 0.001f)
+
+    init {
+        directory.mkdirs()
+    }
+
+    /** Capture the bound canvas of given size and write out frames which are ready. */
+    fun captureFrame(width:Int, height:Int) {
+        capture.capture(directory.child("frame-%05d.png".format(frames)), width, height)
+        frames++
+        capture.poll()
+    }
+
+    /** Write out the remaining frames. */
+    fun finish() {
+        capture.dispose()
+        println("Recorded $frames frames to ${directory.file().canonicalPath}, %.1f frames per second".format(framesPerSecond))
+    }
+}
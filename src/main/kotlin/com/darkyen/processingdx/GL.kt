@@ -21,22 +21,32 @@ fun shader(vertex:String, fragment:String = vertex):ShaderProgram {
     return shader
 }
 
+/**
+ * Load texture from textures directory.
+ *
+ * @param atlas to [Atlas.add] the texture to, if any
+ */
 fun texture(name:String,
             minFilter:Texture.TextureFilter = Texture.TextureFilter.MipMapLinearLinear,
             magFilter:Texture.TextureFilter = Texture.TextureFilter.Linear,
             uWrap:Texture.TextureWrap = Texture.TextureWrap.Repeat,
-            vWrap:Texture.TextureWrap = uWrap):Texture {
+            vWrap:Texture.TextureWrap = uWrap,
+            atlas:Atlas? = null):Texture {
     val texture = Texture(Gdx.files.internal("textures/$name.png"), true)
     texture.setFilter(minFilter, magFilter)
     texture.setWrap(uWrap, vWrap)
+    GLState.invalidateTextures()
+    atlas?.add(texture)
 
     return texture
 }
 
 fun <T>DrawBatch.wireframe(func:DrawBatch.()->T):T {
-    GL11.glPolygonMode(GL11.GL_FRONT_AND_BACK, GL11.GL_LINE)
+    // Geometry drawn before must not be drawn as wireframe
+    flush()
+    GLState.polygonMode(GL11.GL_LINE)
     val result = func()
     flush()
-    GL11.glPolygonMode(GL11.GL_FRONT_AND_BACK, GL11.GL_FILL)
+    GLState.polygonMode(GL11.GL_FILL)
     return result
 }
\ No newline at end of file
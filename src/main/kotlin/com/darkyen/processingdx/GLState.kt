@@ -0,0 +1,216 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.graphics.GLTexture
+import com.badlogic.gdx.graphics.glutils.ShaderProgram
+import org.lwjgl.opengl.GL11
+import org.lwjgl.opengl.GL32
+
+/**
+ * Remembers the GL state set through it and drops calls which would not change it.
+ * All state changes of processingdx go through here.
+ *
+ * It knows only about changes made through it, so code which changes the state directly
+ * (including creating textures and framebuffers, which bind them) must call [invalidate] afterwards.
+ * [Applet] does that at the start of every frame.
+ */
+object GLState {
+
+    private const val Unknown = -1
+
+    /** GL calls issued since [resetCounters] */
+    var issuedCalls = 0
+        private set
+    /** GL calls dropped since [resetCounters], because they would not change anything */
+    var elidedCalls = 0
+        private set
+
+    private var blending = Unknown
+    private var blendSrcFunc = -1
+    private var blendDstFunc = -1
+    private var depthMask = Unknown
+    private var programPointSize = Unknown
+    private var polygonMode = -1
+    private var colorMask = Unknown
+    private var stencilTest = Unknown
+    private var stencilFunc = -1
+    private var stencilRef = -1
+    private var stencilMask = -1
+    private var stencilFrontPass = -1
+    private var stencilBackPass = -1
+
+    private var clearColorKnown = false
+    private var clearR = 0f
+    private var clearG = 0f
+    private var clearB = 0f
+    private var clearA = 0f
+
+    private var shaderKnown = false
+    private var shader:ShaderProgram? = null
+
+    private var activeUnit = -1
+    /** Handle of texture bound to each unit, -1 when not known */
+    private val boundTextures = IntArray(DrawBatch.TextureSlots) { -1 }
+
+    /** Forget all remembered state, next call of each kind will be issued. */
+    fun invalidate() {
+        blending = Unknown
+        blendSrcFunc = -1
+        blendDstFunc = -1
+        depthMask = Unknown
+        programPointSize = Unknown
+        polygonMode = -1
+        colorMask = Unknown
+        stencilTest = Unknown
+        stencilFunc = -1
+        stencilRef = -1
+        stencilMask = -1
+        stencilFrontPass = -1
+        stencilBackPass = -1
+        clearColorKnown = false
+        shaderKnown = false
+        shader = null
+        invalidateTextures()
+    }
+
+    /** Forget which textures are bound, for example after a texture was created. */
+    fun invalidateTextures() {
+        activeUnit = -1
+        boundTextures.fill(-1)
+    }
+
+    fun resetCounters() {
+        issuedCalls = 0
+        elidedCalls = 0
+    }
+
+    private fun elided():Boolean {
+        elidedCalls++
+        return true
+    }
+
+    fun blending(enabled:Boolean) {
+        val state = if (enabled) 1 else 0
+        if (blending == state && elided()) return
+        blending = state
+        issuedCalls++
+        if (enabled) Gdx.gl.glEnable(GL20.GL_BLEND) else Gdx.gl.glDisable(GL20.GL_BLEND)
+    }
+
+    fun blendFunction(srcFunc:Int, dstFunc:Int) {
+        if (blendSrcFunc == srcFunc && blendDstFunc == dstFunc && elided()) return
+        blendSrcFunc = srcFunc
+        blendDstFunc = dstFunc
+        issuedCalls++
+        Gdx.gl.glBlendFunc(srcFunc, dstFunc)
+    }
+
+    fun depthMask(enabled:Boolean) {
+        val state = if (enabled) 1 else 0
+        if (depthMask == state && elided()) return
+        depthMask = state
+        issuedCalls++
+        Gdx.gl.glDepthMask(enabled)
+    }
+
+    /** Whether `gl_PointSize` written by the vertex shader is used */
+    fun programPointSize(enabled:Boolean) {
+        val state = if (enabled) 1 else 0
+        if (programPointSize == state && elided()) return
+        programPointSize = state
+        issuedCalls++
+        if (enabled) Gdx.gl.glEnable(GL32.GL_PROGRAM_POINT_SIZE) else Gdx.gl.glDisable(GL32.GL_PROGRAM_POINT_SIZE)
+    }
+
+    /** @param mode [GL11.GL_FILL] or [GL11.GL_LINE], applied to both faces */
+    fun polygonMode(mode:Int) {
+        if (polygonMode == mode && elided()) return
+        polygonMode = mode
+        issuedCalls++
+        GL11.glPolygonMode(GL11.GL_FRONT_AND_BACK, mode)
+    }
+
+    /** Whether all color channels are written */
+    fun colorMask(enabled:Boolean) {
+        val state = if (enabled) 1 else 0
+        if (colorMask == state && elided()) return
+        colorMask = state
+        issuedCalls++
+        Gdx.gl.glColorMask(enabled, enabled, enabled, enabled)
+    }
+
+    fun stencilTest(enabled:Boolean) {
+        val state = if (enabled) 1 else 0
+        if (stencilTest == state && elided()) return
+        stencilTest = state
+        issuedCalls++
+        if (enabled) Gdx.gl.glEnable(GL20.GL_STENCIL_TEST) else Gdx.gl.glDisable(GL20.GL_STENCIL_TEST)
+    }
+
+    fun stencilFunction(func:Int, ref:Int, mask:Int) {
+        if (stencilFunc == func && stencilRef == ref && stencilMask == mask && elided()) return
+        stencilFunc = func
+        stencilRef = ref
+        stencilMask = mask
+        issuedCalls++
+        Gdx.gl.glStencilFunc(func, ref, mask)
+    }
+
+    /**
+     * Set what happens with the stencil value when both stencil and depth tests pass,
+     * for front ([frontPass]) and back ([backPass]) facing triangles. Otherwise it is kept.
+     */
+    fun stencilOperation(frontPass:Int, backPass:Int) {
+        if (stencilFrontPass == frontPass && stencilBackPass == backPass && elided()) return
+        stencilFrontPass = frontPass
+        stencilBackPass = backPass
+        issuedCalls++
+        if (frontPass == backPass) {
+            Gdx.gl.glStencilOp(GL20.GL_KEEP, GL20.GL_KEEP, frontPass)
+        } else {
+            Gdx.gl.glStencilOpSeparate(GL20.GL_FRONT, GL20.GL_KEEP, GL20.GL_KEEP, frontPass)
+            Gdx.gl.glStencilOpSeparate(GL20.GL_BACK, GL20.GL_KEEP, GL20.GL_KEEP, backPass)
+        }
+    }
+
+    fun clearColor(r:Float, g:Float, b:Float, a:Float) {
+        if (clearColorKnown && clearR == r && clearG == g && clearB == b && clearA == a && elided()) return
+        clearColorKnown = true
+        clearR = r
+        clearG = g
+        clearB = b
+        clearA = a
+        issuedCalls++
+        Gdx.gl.glClearColor(r, g, b, a)
+    }
+
+    /** Bind [shader], or no program when null. */
+    fun useShader(shader:ShaderProgram?) {
+        if (shaderKnown && this.shader === shader && elided()) return
+        shaderKnown = true
+        this.shader = shader
+        issuedCalls++
+        if (shader != null) shader.begin() else Gdx.gl.glUseProgram(0)
+    }
+
+    fun activeTexture(unit:Int) {
+        if (activeUnit == unit && elided()) return
+        activeUnit = unit
+        issuedCalls++
+        Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0 + unit)
+    }
+
+    /** Bind [texture] to texture [unit], which becomes active if the texture was not bound there already. */
+    fun bindTexture(unit:Int, texture:GLTexture) {
+        val handle = texture.textureObjectHandle
+        val boundTextures = boundTextures
+        if (unit < boundTextures.size) {
+            if (boundTextures[unit] == handle && elided()) return
+            boundTextures[unit] = handle
+        }
+        activeTexture(unit)
+        issuedCalls++
+        Gdx.gl.glBindTexture(texture.glTarget, handle)
+    }
+}
@@ -0,0 +1,182 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.graphics.glutils.ShaderProgram
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.utils.BufferUtils
+import com.badlogic.gdx.utils.Disposable
+import java.nio.ByteBuffer
+
+/**
+ * Shapes that can be drawn by [DrawBatch.instanced].
+ */
+enum class InstanceShape {
+    /** Rectangle centered on the instance position */
+    Rectangle,
+    /** Ellipse centered on the instance position */
+    Ellipse,
+    /** Screen aligned square, whose side is instance width in pixels. Height and rotation are ignored. */
+    Point
+}
+
+/**
+ * Per-instance data of [DrawBatch.instanced] shapes.
+ */
+class Instances internal constructor() {
+
+    internal var data = FloatArray(InstanceFloats * 1024)
+    internal var floats = 0
+
+    /** Amount of instances added so far */
+    val count:Int
+        get() = floats / InstanceFloats
+
+    /**
+     * Add an instance of the shape.
+     * @param x center of the instance
+     * @param y center of the instance
+     * @param rotation in degrees, counter-clockwise
+     */
+    fun instance(x:Float, y:Float, width:Float, height:Float = width, color:Float = DrawBatch.White, rotation:Float = 0f) {
+        var data = data
+        val idx = floats
+        if (idx + InstanceFloats > data.size) {
+            data = data.copyOf(data.size * 2)
+            this.data = data
+        }
+        data[idx] = x
+        data[idx + 1] = y
+        data[idx + 2] = width
+        data[idx + 3] = height
+        data[idx + 4] = rotation * MathUtils.degreesToRadians
+        data[idx + 5] = color
+        floats = idx + InstanceFloats
+    }
+
+    internal fun clear() {
+        floats = 0
+    }
+
+    internal companion object {
+        val Format = VertexFormat(
+                VertexFormat.Attribute("a_instPosition", 2, GL20.GL_FLOAT, false),
+                VertexFormat.Attribute("a_instSize", 2, GL20.GL_FLOAT, false),
+                VertexFormat.Attribute("a_instRotation", 1, GL20.GL_FLOAT, false),
+                VertexFormat.Attribute("a_instColor", 4, GL20.GL_UNSIGNED_BYTE, true))
+
+        val InstanceFloats = Format.vertexSize / java.lang.Float.BYTES
+    }
+}
+
+/**
+ * GPU side of [DrawBatch.instanced]: template meshes of all [InstanceShape]s and a buffer of instances.
+ */
+internal class InstanceBuffers(private val shader: ShaderProgram) : Disposable {
+
+    private val vao:Int
+    private val templateBuffer:Int
+    private val instanceBuffer:Int
+
+    private var instanceStaging:ByteBuffer = BufferUtils.newByteBuffer(Instances.Format.vertexSize * 1024)
+
+    init {
+        val templates = FloatArray(TemplateVertices * 2)
+        // Rectangle, as a fan
+        templates[0] = -0.5f; templates[1] = -0.5f
+        templates[2] = -0.5f; templates[3] = 0.5f
+        templates[4] = 0.5f; templates[5] = 0.5f
+        templates[6] = 0.5f; templates[7] = -0.5f
+        // Ellipse, as a fan around the center
+        var idx = EllipseFirst * 2
+        templates[idx++] = 0f
+        templates[idx++] = 0f
+        for (i in 0..EllipseSegments) {
+            val angle = i * MathUtils.PI2 / EllipseSegments
+            templates[idx++] = MathUtils.cos(angle) * 0.5f
+            templates[idx++] = MathUtils.sin(angle) * 0.5f
+        }
+        // Point is a single vertex at origin, already zeroed
+
+        val gl = Gdx.gl30
+        val handle = IntArray(1)
+        gl.glGenVertexArrays(1, handle, 0)
+        vao = handle[0]
+        templateBuffer = gl.glGenBuffer()
+        instanceBuffer = gl.glGenBuffer()
+
+        gl.glBindVertexArray(vao)
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, templateBuffer)
+        val templateData = BufferUtils.newFloatBuffer(templates.size)
+        templateData.put(templates).flip()
+        gl.glBufferData(GL20.GL_ARRAY_BUFFER, templates.size * java.lang.Float.BYTES, templateData, GL20.GL_STATIC_DRAW)
+        val positionLocation = shader.getAttributeLocation(ShaderProgram.POSITION_ATTRIBUTE)
+        gl.glEnableVertexAttribArray(positionLocation)
+        gl.glVertexAttribPointer(positionLocation, 2, GL20.GL_FLOAT, false, 0, 0)
+
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, instanceBuffer)
+        val format = Instances.Format
+        for (attribute in format.attributes) {
+            val location = shader.getAttributeLocation(attribute.alias)
+            if (location < 0) continue
+            gl.glEnableVertexAttribArray(location)
+            gl.glVertexAttribPointer(location, attribute.components, attribute.type, attribute.normalized, format.vertexSize, attribute.offset)
+            gl.glVertexAttribDivisor(location, 1)
+        }
+        gl.glBindVertexArray(0)
+    }
+
+    /**
+     * Upload [instances] and draw them as [shape], with the instancing shader already bound.
+     * @return amount of bytes uploaded to the GPU
+     */
+    fun draw(shape: InstanceShape, instances: Instances):Int {
+        val bytes = instances.floats * java.lang.Float.BYTES
+        var staging = instanceStaging
+        if (staging.capacity() < bytes) {
+            staging = BufferUtils.newByteBuffer(Math.max(bytes, staging.capacity() * 2))
+            instanceStaging = staging
+        }
+        staging.clear()
+        staging.limit(bytes)
+        staging.asFloatBuffer().put(instances.data, 0, instances.floats)
+
+        val gl = Gdx.gl30
+        gl.glBindVertexArray(vao)
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, instanceBuffer)
+        // Specifying the whole buffer again orphans the old one, so there is no need to wait for the previous draw
+        gl.glBufferData(GL20.GL_ARRAY_BUFFER, bytes, staging, GL20.GL_STREAM_DRAW)
+
+        when (shape) {
+            InstanceShape.Rectangle ->
+                gl.glDrawArraysInstanced(GL20.GL_TRIANGLE_FAN, RectangleFirst, RectangleVertices, instances.count)
+            InstanceShape.Ellipse ->
+                gl.glDrawArraysInstanced(GL20.GL_TRIANGLE_FAN, EllipseFirst, EllipseVertices, instances.count)
+            InstanceShape.Point -> {
+                // Does not affect other primitives, so it is left enabled
+                GLState.programPointSize(true)
+                gl.glDrawArraysInstanced(GL20.GL_POINTS, PointFirst, 1, instances.count)
+            }
+        }
+        gl.glBindVertexArray(0)
+        return bytes
+    }
+
+    override fun dispose() {
+        val gl = Gdx.gl30
+        gl.glDeleteBuffer(templateBuffer)
+        gl.glDeleteBuffer(instanceBuffer)
+        gl.glDeleteVertexArrays(1, intArrayOf(vao), 0)
+    }
+
+    private companion object {
+        const val EllipseSegments = 32
+
+        const val RectangleFirst = 0
+        const val RectangleVertices = 4
+        const val EllipseFirst = RectangleFirst + RectangleVertices
+        const val EllipseVertices = EllipseSegments + 2
+        const val PointFirst = EllipseFirst + EllipseVertices
+        const val TemplateVertices = PointFirst + 1
+    }
+}
@@ -9,11 +9,6 @@ import com.darkyen.*
 
 class LineDrawer : LineDrawing {
 
-    private val MAX_JOIN_VERTICES = 305
-    private val MAX_JOIN_INDICES = 301
-    private val MAX_CAP_VERTICES = 303
-    private val MAX_CAP_INDICES = 301
-
     private var stroke: Stroke = WhiteStroke
 
     /** X,Y,W,C */
@@ -100,10 +95,7 @@ class LineDrawer : LineDrawing {
             data[i+3] = stroke.fill.color(x, y, i/4, count)
         }
 
-        val tex = stroke.fill.texture()
-        if (tex != null) {
-            this.texture = tex
-        }
+        this.texture = stroke.fill.texture() ?: defaultTexture
 
         return count
     }
@@ -113,7 +105,7 @@ class LineDrawer : LineDrawing {
      *
      * @returns vertex number of (-> segment.end.left, segment.end.right, nSegment.start.left, nSegment.start.right)
      */
-    private fun createJoinBevel(batch: DrawBatch, fill: Fill, segment: Int, segmentDirection: Vector2, nextSegmentDirection: Vector2):Short {
+    private fun createJoinBevel(batch: DrawBatch, fill: Fill, segment: Int, segmentDirection: Vector2, nextSegmentDirection: Vector2):Int {
         val data = this.data.items
         val bIdx = segmentBegin(segment + 1)
         val x = data[bIdx]
@@ -150,7 +142,7 @@ class LineDrawer : LineDrawing {
     }
 
     private val createJoinMiter_TMP = Vector2()
-    private fun createJoinMiter(batch: DrawBatch, fill: Fill, segment: Int, segmentDirection: Vector2, nextSegmentDirection: Vector2):Short {
+    private fun createJoinMiter(batch: DrawBatch, fill: Fill, segment: Int, segmentDirection: Vector2, nextSegmentDirection: Vector2):Int {
 
         val data = this.data.items
         val bIdx = segmentBegin(segment + 1)
@@ -238,7 +230,7 @@ class LineDrawer : LineDrawing {
 
     private val createJoinRound_TMP = Vector2()
     private val createJoinRound_TMP2 = Vector2()
-    private fun createJoinRound(batch: DrawBatch, fill: Fill, segment: Int, segmentDirection: Vector2, nextSegmentDirection: Vector2):Short {
+    private fun createJoinRound(batch: DrawBatch, fill: Fill, segment: Int, segmentDirection: Vector2, nextSegmentDirection: Vector2):Int {
         val data = this.data.items
         val bIdx = segmentBegin(segment + 1)
         val x = data[bIdx]
@@ -270,8 +262,8 @@ class LineDrawer : LineDrawing {
         val fromY:Float
         val toX:Float
         val toY:Float
-        var lastVx:Short
-        val finalVx:Short
+        var lastVx:Int
+        val finalVx:Int
         if (turnsRight) {
             fromX = lx - x
             fromY = ly - y
@@ -294,7 +286,7 @@ class LineDrawer : LineDrawing {
         if (turnsRight) {
             angle -= 360
         }
-        val steps = Math.min(300, (w * Math.abs(angle) / 360f).toInt() + 2) // MIN needed to honor MAX_JOIN_VERTICES/INDICES
+        val steps = Math.min(300, (w * Math.abs(angle) / 360f).toInt() + 2) // MIN needed to honor maxRoundSteps
         val stepRad = (angle/steps) * MathUtils.degreesToRadians
         pos.nor().scl(w)
 
@@ -317,7 +309,7 @@ class LineDrawer : LineDrawing {
         return pL
     }
 
-    private fun createJoin(batch: DrawBatch, segment: Int, segmentDirection: Vector2, nextSegmentDirection: Vector2):Short {
+    private fun createJoin(batch: DrawBatch, segment: Int, segmentDirection: Vector2, nextSegmentDirection: Vector2):Int {
         return when (stroke.join) {
             Stroke.Join.Miter -> {
                 if (Vector2.dot(segmentDirection.x, segmentDirection.y, nextSegmentDirection.x, nextSegmentDirection.y) < stroke.miterLimit) {
@@ -331,7 +323,7 @@ class LineDrawer : LineDrawing {
         }
     }
 
-    private fun createCapSquare(batch: DrawBatch, fill: Fill, segment:Int, segmentDirection: Vector2, begin:Boolean, size: Float):Short {
+    private fun createCapSquare(batch: DrawBatch, fill: Fill, segment:Int, segmentDirection: Vector2, begin:Boolean, size: Float):Int {
         val data = this.data.items
         val bIdx = segmentBegin(if (begin) segment else segment + 1)
         val x = data[bIdx] + (if (begin) -segmentDirection.x else segmentDirection.x) * size
@@ -350,7 +342,7 @@ class LineDrawer : LineDrawing {
         return pL
     }
 
-    private fun createCapRound(batch: DrawBatch, fill: Fill, segment:Int, segmentDirection: Vector2, begin:Boolean):Short {
+    private fun createCapRound(batch: DrawBatch, fill: Fill, segment:Int, segmentDirection: Vector2, begin:Boolean):Int {
         val data = this.data.items
         val bIdx = segmentBegin(if (begin) segment else segment + 1)
         val x = data[bIdx]
@@ -367,7 +359,7 @@ class LineDrawer : LineDrawing {
         val vRight = batch.vertex(rx, ry, c, fill)
         val vCenter = batch.vertex(x, y, c, fill)
 
-        val steps = Math.min(300, (w * 0.5f).toInt() + 2) //Same formula like used for round join, even if it does not look like it
+        val steps = Math.min(300, (w * 0.5f).toInt() + 2) //Same formula like used for round join, even if it does not look like it (also honors maxRoundSteps)
         val stepRad = MathUtils.PI / steps
 
         var rotX = if (begin) lx - x else rx - x
@@ -394,7 +386,7 @@ class LineDrawer : LineDrawing {
         return vLeft
     }
 
-    private fun createCap(batch: DrawBatch, segment:Int, segmentDirection: Vector2, begin:Boolean):Short {
+    private fun createCap(batch: DrawBatch, segment:Int, segmentDirection: Vector2, begin:Boolean):Int {
         return when(stroke.cap) {
             Stroke.Cap.Round -> createCapRound(batch, stroke.fill, segment, segmentDirection, begin)
             Stroke.Cap.Square -> {
@@ -405,100 +397,147 @@ class LineDrawer : LineDrawing {
         }
     }
 
-    private fun DrawBatch.expectAndTranslate(vCalls:Int, iCalls:Int, index:Short, amount:Int):Short {
-        if (expect(vCalls, iCalls)) {
-            // Did flush, save the data!
-            val savedDataLength = amount * vertexFloatFields
-            System.arraycopy(vertices, index * vertexFloatFields, vertices, 0, savedDataLength)
-            vIndex = savedDataLength
-            return 0
+    /** Upper bound of steps done by [createJoinRound] and [createCapRound] for stroke of width [w]. */
+    private fun maxRoundSteps(w:Float):Int = Math.min(300, w.toInt() + 2)
+
+    /**
+     * Reserve space for the whole line in the batch, so that it is never flushed in the middle of the line.
+     * @param joins amount of joins the line will have
+     * @param caps amount of caps the line will have
+     */
+    private fun reserve(batch: DrawBatch, count:Int, joins:Int, caps:Int) {
+        val data = this.data.items
+        var maxWidth = 0f
+        for (i in 0 until count) {
+            maxWidth = Math.max(maxWidth, data[i * 4 + 2])
+        }
+        val roundSteps = maxRoundSteps(maxWidth)
+
+        val joinVertices:Int
+        val joinTriangles:Int
+        if (stroke.join == Stroke.Join.Round) {
+            joinVertices = 5 + roundSteps
+            joinTriangles = roundSteps + 1
+        } else {
+            joinVertices = 5
+            joinTriangles = 1
+        }
+
+        val capVertices:Int
+        val capTriangles:Int
+        if (stroke.cap == Stroke.Cap.Round) {
+            capVertices = 3 + roundSteps
+            capTriangles = roundSteps + 1
+        } else {
+            capVertices = 2
+            capTriangles = 0
+        }
+
+        val segmentTriangles = 2 * (joins + 1)
+        batch.expect(joins * joinVertices + caps * capVertices, joins * joinTriangles + caps * capTriangles + segmentTriangles)
+    }
+
+    /**
+     * Check whether the whole line ends up outside of the view, see [DrawBatch.isOutsideView].
+     * Points are padded conservatively: by stroke width for the sides, round joins and caps,
+     * by its diagonal for square caps and by the longest possible miter for miter joins.
+     */
+    private fun isOutsideView(batch: DrawBatch):Boolean {
+        if (!batch.culling) return false
+        val count = this.data.size / 4
+        val data = this.data.items
+        var minX = Float.POSITIVE_INFINITY
+        var minY = Float.POSITIVE_INFINITY
+        var maxX = Float.NEGATIVE_INFINITY
+        var maxY = Float.NEGATIVE_INFINITY
+        var maxWidth = 0f
+        for (i in 0 until count) {
+            val x = data[i * 4]
+            val y = data[i * 4 + 1]
+            minX = Math.min(minX, x)
+            minY = Math.min(minY, y)
+            maxX = Math.max(maxX, x)
+            maxY = Math.max(maxY, y)
+            maxWidth = Math.max(maxWidth, data[i * 4 + 2])
+        }
+
+        var extent = SquareCapExtent
+        if (stroke.join == Stroke.Join.Miter) {
+            // Miter of segments whose directions have dot product d is w / cos(angle/2) = w / sqrt((1 + d) / 2)
+            val limit = stroke.miterLimit
+            if (limit <= -1f) return false
+            extent = Math.max(extent, 1f / Math.sqrt((1.0 + limit) / 2.0).toFloat())
         }
-        return index
+
+        return batch.isOutsideView(minX, minY, maxX - minX, maxY - minY, maxWidth * extent)
     }
 
     /** complete non-looped */
     fun doneLine(batch: DrawBatch) {
+        if (isOutsideView(batch)) return
         val count = batch.prepareToDraw()
         if (count <= 1) return
+        reserve(batch, count, count - 2, 2)
 
         val thisDirection = segmentDirection(0)
-        batch.expect(MAX_CAP_VERTICES, MAX_CAP_INDICES)
-        var thisBeginLeft:Short = createCap(batch, 0, thisDirection, true)
+        var thisBeginLeft = createCap(batch, 0, thisDirection, true)
         val nextDirection = Vector2()
 
         for (i in 0..(count-3)) {
             // Create join in the end of segment that starts at i and complete the segment
             segmentDirection(i+1, nextDirection)
-            thisBeginLeft = batch.expectAndTranslate(MAX_JOIN_VERTICES, MAX_CAP_INDICES + 2, thisBeginLeft, 2)
-            val thisEndLeft:Short = createJoin(batch, i, thisDirection, nextDirection)
+            val thisEndLeft = createJoin(batch, i, thisDirection, nextDirection)
 
-            batch.indicesRect(thisBeginLeft, thisEndLeft, (thisEndLeft + 1).toShort(), (thisBeginLeft + 1).toShort())
+            batch.indicesRect(thisBeginLeft, thisEndLeft, thisEndLeft + 1, thisBeginLeft + 1)
 
-            thisBeginLeft = (thisEndLeft + 2).toShort()
+            thisBeginLeft = thisEndLeft + 2
             thisDirection.set(nextDirection)
         }
 
         // Now create last segment
-        thisBeginLeft = batch.expectAndTranslate(MAX_JOIN_VERTICES, MAX_CAP_INDICES + 2, thisBeginLeft, 2)
         val endCap = createCap(batch, count-2, thisDirection, false)
-        batch.indicesRect(thisBeginLeft, endCap, (endCap + 1).toShort(), (thisBeginLeft + 1).toShort())
+        batch.indicesRect(thisBeginLeft, endCap, endCap + 1, thisBeginLeft + 1)
     }
 
     /** complete non-looped */
     fun doneLoop(batch: DrawBatch) {
+        if (isOutsideView(batch)) return
         val count = batch.prepareToDraw()
         if (count <= 1) return
+        reserve(batch, count, count, 0)
 
         val thisDirection = segmentDirection(count - 1)
         val nextDirection = segmentDirection(0)
         /** = total last end left */
-        batch.expect(MAX_JOIN_VERTICES, MAX_JOIN_INDICES)
-        var loopJoin = createJoin(batch, count-1, thisDirection, nextDirection)
-        var loopJoinData:FloatArray? = null
+        val loopJoin = createJoin(batch, count-1, thisDirection, nextDirection)
 
-        var thisBeginLeft:Short = (loopJoin + 2).toShort()
+        var thisBeginLeft = loopJoin + 2
         thisDirection.set(nextDirection)
 
         for (i in 0..(count-2)) {
             // Create join in the end of segment that starts at i and complete the segment
             segmentDirection(i+1, nextDirection)
+            val thisEndLeft = createJoin(batch, i, thisDirection, nextDirection)
 
-            if (batch.expect(MAX_JOIN_VERTICES, MAX_CAP_INDICES + 2 + 1 /* prepare for final segment for simplicity */)) {
-                // Did flush, save the data!
-                val savedDataLength = 2 * batch.vertexFloatFields
-                if (loopJoinData == null) {
-                    loopJoinData = FloatArray(savedDataLength)
-                    System.arraycopy(batch.vertices, loopJoin * batch.vertexFloatFields, loopJoinData, 0, savedDataLength)
-                }
+            batch.indicesRect(thisBeginLeft, thisEndLeft, thisEndLeft + 1, thisBeginLeft + 1)
 
-
-                System.arraycopy(batch.vertices, thisBeginLeft * batch.vertexFloatFields, batch.vertices, batch.vIndex, savedDataLength)
-                batch.vIndex += savedDataLength
-                thisBeginLeft = 0
-
-                System.arraycopy(loopJoinData, 0, batch.vertices, batch.vIndex, savedDataLength)
-                batch.vIndex += savedDataLength
-                loopJoin = 2
-            }
-
-            val thisEndLeft:Short = createJoin(batch, i, thisDirection, nextDirection)
-
-            batch.indicesRect(thisBeginLeft, thisEndLeft, (thisEndLeft + 1).toShort(), (thisBeginLeft + 1).toShort())
-
-            thisBeginLeft = (thisEndLeft + 2).toShort()
+            thisBeginLeft = thisEndLeft + 2
             thisDirection.set(nextDirection)
         }
 
         // Now create last segment
-        batch.indicesRect(thisBeginLeft, loopJoin, (loopJoin + 1).toShort(), (thisBeginLeft + 1).toShort())
+        batch.indicesRect(thisBeginLeft, loopJoin, loopJoin + 1, thisBeginLeft + 1)
     }
 }
 
 @Suppress("NOTHING_TO_INLINE")
-private inline fun DrawBatch.vertex(x:Float, y:Float, color:Float, fill:Fill):Short {
+private inline fun DrawBatch.vertex(x:Float, y:Float, color:Float, fill:Fill):Int {
     return vertex(x, y, color, fill.textureU(x, y), fill.textureV(x, y))
 }
 
+/** Distance of square cap corners from the line end, in stroke widths */
+private val SquareCapExtent = Math.sqrt(2.0).toFloat()
+
 interface LineDrawing {
     fun vertex(x:Float, y:Float)
 
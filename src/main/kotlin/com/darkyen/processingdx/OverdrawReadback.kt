@@ -0,0 +1,96 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.graphics.GL30
+import org.lwjgl.opengl.GL11
+import org.lwjgl.opengl.GL30.glMapBufferRange
+import org.lwjgl.opengl.GL32
+import java.nio.ByteBuffer
+
+/**
+ * Reads overdraw counts (see [DrawBatch.overdraw]) back into [average] and [max] without stalling the render loop.
+ * Like [ScreenshotCapture], the counts go into a pixel buffer object, which is read only after the GPU is done with it,
+ * so the statistics are from a frame or more earlier.
+ */
+internal class OverdrawReadback {
+
+    private var buffer = 0
+    private var bufferSize = 0
+    private var fence = 0L
+    private var width = 0
+    private var height = 0
+
+    /** Average count per pixel of the last read frame */
+    var average = 0f
+        private set
+    /** Highest count of the last read frame */
+    var max = 0
+        private set
+
+    /**
+     * Update [average] and [max] when the previous read is done, and then start reading the counts
+     * from the bound framebuffer of given size. When the previous read is not done yet, this frame is skipped.
+     */
+    fun read(width:Int, height:Int) {
+        if (fence != 0L) {
+            val status = GL32.glClientWaitSync(fence, 0, 0L)
+            if (status != GL32.GL_ALREADY_SIGNALED && status != GL32.GL_CONDITION_SATISFIED) return
+            GL32.glDeleteSync(fence)
+            fence = 0L
+            computeStatistics()
+        }
+
+        val gl = Gdx.gl30
+        if (buffer == 0) {
+            buffer = gl.glGenBuffer()
+        }
+        gl.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, buffer)
+        val size = width * height
+        if (size > bufferSize) {
+            gl.glBufferData(GL30.GL_PIXEL_PACK_BUFFER, size, null, GL30.GL_STREAM_READ)
+            bufferSize = size
+        }
+        gl.glPixelStorei(GL20.GL_PACK_ALIGNMENT, 1)
+        // All channels hold the same count, one is enough
+        GL11.glReadPixels(0, 0, width, height, GL30.GL_RED, GL20.GL_UNSIGNED_BYTE, 0L)
+        gl.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0)
+        fence = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0)
+        this.width = width
+        this.height = height
+    }
+
+    private fun computeStatistics() {
+        val gl = Gdx.gl30
+        gl.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, buffer)
+        val pixelCount = width * height
+        val mapped:ByteBuffer? = glMapBufferRange(GL30.GL_PIXEL_PACK_BUFFER, 0L, pixelCount.toLong(), GL30.GL_MAP_READ_BIT)
+        if (mapped != null) {
+            var sum = 0L
+            var max = 0
+            for (i in 0 until pixelCount) {
+                val count = mapped.get(i).toInt() and 0xFF
+                sum += count
+                if (count > max) max = count
+            }
+            average = sum.toFloat() / pixelCount
+            this.max = max
+            gl.glUnmapBuffer(GL30.GL_PIXEL_PACK_BUFFER)
+        }
+        gl.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0)
+    }
+
+    fun dispose() {
+        if (fence != 0L) {
+            GL32.glDeleteSync(fence)
+            fence = 0L
+        }
+        if (buffer != 0) {
+            Gdx.gl30.glDeleteBuffer(buffer)
+            buffer = 0
+            bufferSize = 0
+        }
+        average = 0f
+        max = 0
+    }
+}
@@ -0,0 +1,104 @@
+package com.darkyen.processingdx
+
+import java.io.DataOutputStream
+import java.io.OutputStream
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+
+/**
+ * Writes RGBA8888 PNG image row by row, from the top, so that the whole image never has to be in memory.
+ * Compressed data is written out in chunks as it is produced.
+ */
+internal class PngStreamWriter(output:OutputStream, private val width:Int, private val height:Int) : AutoCloseable {
+
+    private val output = DataOutputStream(output)
+    private val crc = CRC32()
+    private val deflater = Deflater(Deflater.DEFAULT_COMPRESSION)
+    private val data = DeflaterOutputStream(ChunkOutputStream(), deflater, ChunkSize)
+    private var rows = 0
+
+    init {
+        this.output.write(Signature)
+        val header = java.nio.ByteBuffer.allocate(13)
+        header.putInt(width)
+        header.putInt(height)
+        header.put(8) // Bit depth
+        header.put(6) // Color type: RGBA
+        header.put(0) // Compression: deflate
+        header.put(0) // Filter method: adaptive
+        header.put(0) // No interlace
+        writeChunk(IHDR, header.array(), 0, 13)
+    }
+
+    /** Write next row, [width] RGBA pixels from [pixels] at [offset]. */
+    fun writeRow(pixels:ByteArray, offset:Int) {
+        if (rows == height) throw IllegalStateException("All $height rows were already written")
+        data.write(FilterNone)
+        data.write(pixels, offset, width * 4)
+        rows++
+    }
+
+    /** Finish the image, all rows must have been written. Closes the output. */
+    override fun close() {
+        if (rows != height) throw IllegalStateException("Only $rows of $height rows were written")
+        // Also closes the chunk stream, which writes out the last IDAT chunk
+        data.close()
+        deflater.end()
+        writeChunk(IEND, ByteArray(0), 0, 0)
+        output.close()
+    }
+
+    private fun writeChunk(type:ByteArray, bytes:ByteArray, offset:Int, length:Int) {
+        output.writeInt(length)
+        output.write(type)
+        output.write(bytes, offset, length)
+        crc.reset()
+        crc.update(type)
+        crc.update(bytes, offset, length)
+        output.writeInt(crc.value.toInt())
+    }
+
+    /** Collects the compressed data and writes it as IDAT chunks of at most [ChunkSize] bytes. */
+    private inner class ChunkOutputStream : OutputStream() {
+        private val buffer = ByteArray(ChunkSize)
+        private var size = 0
+
+        override fun write(b:Int) {
+            if (size == buffer.size) flush()
+            buffer[size++] = b.toByte()
+        }
+
+        override fun write(b:ByteArray, off:Int, len:Int) {
+            var offset = off
+            var remaining = len
+            while (remaining > 0) {
+                if (size == buffer.size) flush()
+                val count = Math.min(remaining, buffer.size - size)
+                System.arraycopy(b, offset, buffer, size, count)
+                size += count
+                offset += count
+                remaining -= count
+            }
+        }
+
+        override fun flush() {
+            if (size == 0) return
+            writeChunk(IDAT, buffer, 0, size)
+            size = 0
+        }
+
+        override fun close() {
+            flush()
+        }
+    }
+
+    private companion object {
+        const val ChunkSize = 64 * 1024
+        const val FilterNone = 0
+        val Signature = byteArrayOf(0x89.toByte(), 'P'.toByte(), 'N'.toByte(), 'G'.toByte(), 13, 10, 26, 10)
+        val IHDR = "IHDR".toByteArray(Charsets.US_ASCII)
+        val IDAT = "IDAT".toByteArray(Charsets.US_ASCII)
+        val IEND = "IEND".toByteArray(Charsets.US_ASCII)
+    }
+}
@@ -0,0 +1,106 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.utils.FloatArray as Floats
+import com.badlogic.gdx.utils.IntArray as Ints
+
+/** Decides which parts of self-intersecting polygons and polygons with holes are filled, see [DrawBatch.polygon]. */
+enum class FillRule {
+    /** Filled are points around which the contours wind non-zero times, so holes must wind in the opposite direction. */
+    NonZero,
+    /** Filled are points from which a ray crosses the contours odd amount of times. */
+    EvenOdd
+}
+
+/**
+ * Fills polygons with stencil-then-cover: triangle fan of each contour is drawn only into the stencil buffer,
+ * counting windings (or their parity), then a single rectangle covering the polygon is drawn where the stencil is set,
+ * which also clears it. No triangulation is needed, so polygons may be concave, self-intersecting and have holes.
+ */
+class PolygonFiller : PolygonDrawing {
+
+    private var fill: Fill = WhiteFill
+    private var rule = FillRule.NonZero
+
+    /** X,Y */
+    private val data = Floats(true, 64 * 2)
+    /** Index of the first vertex of each contour */
+    private val contours = Ints(true, 8)
+
+    fun init(fill: Fill, rule: FillRule) {
+        this.fill = fill
+        this.rule = rule
+        this.data.clear()
+        this.contours.clear()
+        this.contours.add(0)
+    }
+
+    override fun vertex(x: Float, y: Float) {
+        data.add(x)
+        data.add(y)
+    }
+
+    override fun contour() {
+        val start = data.size / 2
+        if (contours.peek() != start) {
+            contours.add(start)
+        }
+    }
+
+    fun done(batch: DrawBatch) {
+        val count = data.size / 2
+        if (count < 3) return
+        val data = this.data.items
+
+        var minX = Float.POSITIVE_INFINITY
+        var minY = Float.POSITIVE_INFINITY
+        var maxX = Float.NEGATIVE_INFINITY
+        var maxY = Float.NEGATIVE_INFINITY
+        for (i in 0 until count) {
+            minX = Math.min(minX, data[i * 2])
+            minY = Math.min(minY, data[i * 2 + 1])
+            maxX = Math.max(maxX, data[i * 2])
+            maxY = Math.max(maxY, data[i * 2 + 1])
+        }
+        if (batch.isOutsideView(minX, minY, maxX - minX, maxY - minY)) return
+
+        batch.beginStencil(rule)
+        batch.texture = batch.defaultTexture
+        val contours = this.contours
+        for (c in 0 until contours.size) {
+            val start = contours[c]
+            val end = if (c + 1 < contours.size) contours[c + 1] else count
+            if (end - start < 3) continue
+
+            // Triangles of the fan are independent in the stencil, so it does not have to fit into one batch
+            var i = start + 1
+            while (i < end - 1) {
+                val triangles = Math.min(end - 1 - i, FanTriangles)
+                batch.expect(triangles + 2, triangles)
+                val center = batch.vertex(data[start * 2], data[start * 2 + 1])
+                var previous = batch.vertex(data[i * 2], data[i * 2 + 1])
+                for (t in 1..triangles) {
+                    val next = batch.vertex(data[(i + t) * 2], data[(i + t) * 2 + 1])
+                    batch.indices(center, previous, next)
+                    previous = next
+                }
+                i += triangles
+            }
+        }
+
+        batch.beginCover()
+        batch.rectangle(minX, minY, maxX - minX, maxY - minY, fill)
+        batch.endStencil()
+    }
+
+    private companion object {
+        /** Triangles of a fan written at once */
+        const val FanTriangles = 1024
+    }
+}
+
+interface PolygonDrawing {
+    fun vertex(x:Float, y:Float)
+
+    /** End the current contour and start a new one, for example a hole. */
+    fun contour()
+}
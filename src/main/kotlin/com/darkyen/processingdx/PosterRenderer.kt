@@ -0,0 +1,96 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.files.FileHandle
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.graphics.Pixmap
+import com.badlogic.gdx.graphics.glutils.FrameBuffer
+import com.badlogic.gdx.utils.BufferUtils
+import java.io.BufferedOutputStream
+
+/**
+ * Renders the canvas at arbitrary resolution, larger than the biggest framebuffer GPU can have, see [Applet.renderPoster].
+ * Canvas is drawn tile by tile into one reusable framebuffer, with the camera moved over the tile,
+ * and each finished row of tiles is streamed into the PNG file, so only one row of tiles is ever in memory.
+ * Tiles are wide and short, so that the row takes little memory even for very wide posters.
+ */
+internal class PosterRenderer(private val batch:DrawBatch, tileWidth:Int, tileHeight:Int) {
+
+    private val tileWidth:Int
+    private val tileHeight:Int
+
+    init {
+        val limits = BufferUtils.newIntBuffer(16)
+        Gdx.gl.glGetIntegerv(GL20.GL_MAX_TEXTURE_SIZE, limits)
+        val maxTexture = limits.get(0)
+        Gdx.gl.glGetIntegerv(GL20.GL_MAX_RENDERBUFFER_SIZE, limits)
+        val maxRenderbuffer = limits.get(0)
+        val maxSize = Math.min(maxTexture, maxRenderbuffer)
+        this.tileWidth = Math.max(1, Math.min(tileWidth, maxSize))
+        this.tileHeight = Math.max(1, Math.min(tileHeight, maxSize))
+    }
+
+    /**
+     * Draw the canvas of [canvasWidth] x [canvasHeight] world units, magnified by [scale], into [file].
+     * [draw] is called once per tile and must draw the whole canvas each time.
+     */
+    fun render(file:FileHandle, canvasWidth:Int, canvasHeight:Int, scale:Float, draw:(DrawBatch) -> Unit) {
+        val posterWidth = Math.max(1, Math.round(canvasWidth * scale))
+        val posterHeight = Math.max(1, Math.round(canvasHeight * scale))
+        val tileWidth = tileWidth
+        val tileHeight = tileHeight
+
+        val camera = batch.viewport.camera
+        val oldViewportWidth = camera.viewportWidth
+        val oldViewportHeight = camera.viewportHeight
+        val oldX = camera.position.x
+        val oldY = camera.position.y
+
+        val tile = FrameBuffer(Pixmap.Format.RGBA8888, tileWidth, tileHeight, false, true)
+        GLState.invalidateTextures()
+        val tilePixels = BufferUtils.newByteBuffer(tileWidth * tileHeight * 4)
+        // Rows of tiles, top to bottom, in the order of PNG rows
+        val rowBytes = posterWidth * 4
+        val tileRow = ByteArray(rowBytes * Math.min(tileHeight, posterHeight))
+
+        val writer = PngStreamWriter(BufferedOutputStream(file.write(false), 1 shl 16), posterWidth, posterHeight)
+        tile.begin()
+        for (top in 0 until posterHeight step tileHeight) {
+            val height = Math.min(tileHeight, posterHeight - top)
+            for (left in 0 until posterWidth step tileWidth) {
+                val width = Math.min(tileWidth, posterWidth - left)
+
+                Gdx.gl.glViewport(0, 0, width, height)
+                camera.viewportWidth = width / scale
+                camera.viewportHeight = height / scale
+                camera.position.set(left / scale + camera.viewportWidth * 0.5f,
+                        canvasHeight - (top + height) / scale + camera.viewportHeight * 0.5f, 0f)
+                camera.update()
+
+                GLState.clearColor(0f, 0f, 0f, 1f)
+                Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT or GL20.GL_STENCIL_BUFFER_BIT)
+                draw(batch)
+
+                tilePixels.clear()
+                Gdx.gl.glPixelStorei(GL20.GL_PACK_ALIGNMENT, 1)
+                Gdx.gl.glReadPixels(0, 0, width, height, GL20.GL_RGBA, GL20.GL_UNSIGNED_BYTE, tilePixels)
+                // Flip, GL rows go from the bottom
+                for (row in 0 until height) {
+                    tilePixels.position(row * width * 4)
+                    tilePixels.get(tileRow, (height - row - 1) * rowBytes + left * 4, width * 4)
+                }
+            }
+            for (row in 0 until height) {
+                writer.writeRow(tileRow, row * rowBytes)
+            }
+        }
+        tile.end()
+        writer.close()
+        tile.dispose()
+
+        camera.viewportWidth = oldViewportWidth
+        camera.viewportHeight = oldViewportHeight
+        camera.position.set(oldX, oldY, 0f)
+        camera.update()
+    }
+}
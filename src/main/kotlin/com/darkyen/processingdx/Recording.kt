@@ -0,0 +1,139 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.graphics.Texture
+import com.badlogic.gdx.graphics.glutils.ShaderProgram
+import com.badlogic.gdx.utils.BufferUtils
+import com.badlogic.gdx.utils.Disposable
+import com.darkyen.Objects
+
+/**
+ * Geometry captured by [DrawBatch.record], kept in GPU memory so that it can be drawn again by [DrawBatch.draw]
+ * without generating it again. The memory is held until [dispose].
+ */
+class Recording internal constructor(format: VertexFormat, vertices:com.badlogic.gdx.utils.FloatArray,
+                                     indices:com.badlogic.gdx.utils.IntArray, internal val parts:Array<Part>) : Disposable {
+
+    /**
+     * Continuous range of indices drawn with the same state.
+     * @param textures bound to the texture slots, in order
+     */
+    internal class Part(val shader: ShaderProgram, val textures:Array<Texture>,
+                        val blendingEnabled:Boolean, val blendSrcFunc:Int, val blendDstFunc:Int,
+                        val indexOffset:Int, var indexCount:Int) {
+
+        fun hasSameState(shader: ShaderProgram, textures:Array<Texture?>, textureCount:Int,
+                         blendingEnabled:Boolean, blendSrcFunc:Int, blendDstFunc:Int):Boolean {
+            if (this.shader !== shader || this.textures.size != textureCount
+                    || this.blendingEnabled != blendingEnabled || this.blendSrcFunc != blendSrcFunc || this.blendDstFunc != blendDstFunc) {
+                return false
+            }
+            for (i in 0 until textureCount) {
+                if (this.textures[i] !== textures[i]) return false
+            }
+            return true
+        }
+    }
+
+    /** Amount of vertices stored */
+    val vertexCount:Int = vertices.size / (format.vertexSize / java.lang.Float.BYTES)
+
+    /** Amount of triangles stored */
+    val triangleCount:Int = indices.size / 3
+
+    /** Amount of draw calls needed to draw the recording */
+    val partCount:Int
+        get() = parts.size
+
+    private val wideIndices = vertexCount > DrawBatch.MaxNarrowVertices
+    private val indexSize = if (wideIndices) Integer.BYTES else java.lang.Short.BYTES
+
+    private val vao:Int
+    private val vertexBuffer:Int
+    private val indexBuffer:Int
+    private val attributes = AttributePointers(format)
+
+    init {
+        val gl = Gdx.gl30
+        val handle = IntArray(1)
+        gl.glGenVertexArrays(1, handle, 0)
+        vao = handle[0]
+        vertexBuffer = gl.glGenBuffer()
+        indexBuffer = gl.glGenBuffer()
+
+        val vertexData = BufferUtils.newFloatBuffer(vertices.size)
+        vertexData.put(vertices.items, 0, vertices.size).flip()
+
+        gl.glBindVertexArray(vao)
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, vertexBuffer)
+        gl.glBufferData(GL20.GL_ARRAY_BUFFER, vertices.size * java.lang.Float.BYTES, vertexData, GL20.GL_STATIC_DRAW)
+        gl.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer)
+        if (wideIndices) {
+            val indexData = BufferUtils.newIntBuffer(indices.size)
+            indexData.put(indices.items, 0, indices.size).flip()
+            gl.glBufferData(GL20.GL_ELEMENT_ARRAY_BUFFER, indices.size * indexSize, indexData, GL20.GL_STATIC_DRAW)
+        } else {
+            val indexData = BufferUtils.newShortBuffer(indices.size)
+            for (i in 0 until indices.size) {
+                indexData.put(indices.items[i].toShort())
+            }
+            indexData.flip()
+            gl.glBufferData(GL20.GL_ELEMENT_ARRAY_BUFFER, indices.size * indexSize, indexData, GL20.GL_STATIC_DRAW)
+        }
+        gl.glBindVertexArray(0)
+    }
+
+    /** Draw given part with [shader], which must be already bound together with the state of the part. */
+    internal fun draw(shader: ShaderProgram, part:Part) {
+        val gl = Gdx.gl30
+        gl.glBindVertexArray(vao)
+        gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, vertexBuffer)
+        attributes.setup(shader)
+        gl.glDrawElements(GL20.GL_TRIANGLES, part.indexCount,
+                if (wideIndices) GL20.GL_UNSIGNED_INT else GL20.GL_UNSIGNED_SHORT, part.indexOffset * indexSize)
+        gl.glBindVertexArray(0)
+    }
+
+    override fun dispose() {
+        val gl = Gdx.gl30
+        gl.glDeleteBuffer(vertexBuffer)
+        gl.glDeleteBuffer(indexBuffer)
+        gl.glDeleteVertexArrays(1, intArrayOf(vao), 0)
+    }
+}
+
+/**
+ * Collects flushed batches of [DrawBatch] while it is recording.
+ */
+internal class Recorder(private val vertexFloatFields:Int) {
+    val vertices = com.badlogic.gdx.utils.FloatArray(false, 1024)
+    /** Indices into [vertices], not relative to the batch they came from */
+    val indices = com.badlogic.gdx.utils.IntArray(false, 1024)
+    private val parts = Objects<Recording.Part>(false, 16)
+
+    /** Amount of vertices recorded so far, index of the next vertex */
+    val vertexCount:Int
+        get() = vertices.size / vertexFloatFields
+
+    /** Add part of given state that ends with the last recorded index and starts at [indexOffset].
+     * It is merged with the previous part when it has the same state. */
+    fun addPart(shader: ShaderProgram, textures:Array<Texture?>, textureCount:Int,
+                blendingEnabled:Boolean, blendSrcFunc:Int, blendDstFunc:Int, indexOffset:Int) {
+        val indexCount = indices.size - indexOffset
+        if (parts.size > 0) {
+            val last = parts.peek()
+            if (last.hasSameState(shader, textures, textureCount, blendingEnabled, blendSrcFunc, blendDstFunc)) {
+                last.indexCount += indexCount
+                return
+            }
+        }
+
+        val partTextures = Array(textureCount) { textures[it]!! }
+        parts.add(Recording.Part(shader, partTextures, blendingEnabled, blendSrcFunc, blendDstFunc, indexOffset, indexCount))
+    }
+
+    fun build(format: VertexFormat):Recording {
+        return Recording(format, vertices, indices, Array(parts.size) { parts[it] })
+    }
+}
@@ -0,0 +1,99 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.graphics.Pixmap
+import com.badlogic.gdx.graphics.glutils.FrameBuffer
+
+/**
+ * Framebuffer whose size changes often, like the canvas when the window is resized.
+ * Only the [width] x [height] part in the bottom left corner of the backing [frameBuffer] is used.
+ * Backing framebuffer only grows, in steps of [Granularity], and is replaced only when it is too small,
+ * so shrinking and growing back does not allocate anything.
+ */
+internal class ReusableFramebuffer(private val batch:DrawBatch, private val stencil:Boolean) {
+
+    /** Backing framebuffer, may be larger than the used part */
+    var frameBuffer:FrameBuffer? = null
+        private set
+
+    /** Size of the used part */
+    var width = 0
+        private set
+    var height = 0
+        private set
+
+    /** Texture coordinate of the right edge of the used part */
+    val u2:Float
+        get() = width.toFloat() / frameBuffer!!.width
+    /** Texture coordinate of the top edge of the used part */
+    val v2:Float
+        get() = height.toFloat() / frameBuffer!!.height
+
+    /**
+     * Change the size of the used part. What was drawn is kept in place, newly exposed pixels are cleared to opaque black.
+     * Must not be called while any framebuffer is bound.
+     */
+    fun resize(width:Int, height:Int) {
+        val old = frameBuffer
+        if (old != null && width == this.width && height == this.height) return
+
+        if (old == null || old.width < width || old.height < height) {
+            val allocatedWidth = roundUp(Math.max(width, old?.width ?: 0))
+            val allocatedHeight = roundUp(Math.max(height, old?.height ?: 0))
+            val new = FrameBuffer(Pixmap.Format.RGBA8888, allocatedWidth, allocatedHeight, false, stencil)
+            GLState.invalidateTextures()
+            new.begin()
+            Gdx.gl.glViewport(0, 0, allocatedWidth, allocatedHeight)
+            GLState.clearColor(0f, 0f, 0f, 1f)
+            Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT or GL20.GL_STENCIL_BUFFER_BIT)
+            if (old != null) {
+                batch.drawFramebuffer(old, 0f, 0f, this.width.toFloat() / allocatedWidth, this.height.toFloat() / allocatedHeight,
+                        u2 = u2, v2 = v2)
+                old.dispose()
+            }
+            new.end()
+            frameBuffer = new
+        } else {
+            // Pixels outside of the used part are left from earlier, larger size
+            old.begin()
+            GLState.clearColor(0f, 0f, 0f, 1f)
+            Gdx.gl.glEnable(GL20.GL_SCISSOR_TEST)
+            if (width > this.width) {
+                Gdx.gl.glScissor(this.width, 0, width - this.width, height)
+                Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT or GL20.GL_STENCIL_BUFFER_BIT)
+            }
+            if (height > this.height) {
+                Gdx.gl.glScissor(0, this.height, width, height - this.height)
+                Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT or GL20.GL_STENCIL_BUFFER_BIT)
+            }
+            Gdx.gl.glDisable(GL20.GL_SCISSOR_TEST)
+            old.end()
+        }
+        this.width = width
+        this.height = height
+    }
+
+    /** Bind the framebuffer, with viewport over the used part. */
+    fun begin() {
+        frameBuffer!!.begin()
+        Gdx.gl.glViewport(0, 0, width, height)
+    }
+
+    fun end() {
+        frameBuffer!!.end()
+    }
+
+    fun dispose() {
+        frameBuffer?.dispose()
+        frameBuffer = null
+        width = 0
+        height = 0
+    }
+
+    private companion object {
+        const val Granularity = 128
+
+        fun roundUp(size:Int):Int = (size + Granularity - 1) / Granularity * Granularity
+    }
+}
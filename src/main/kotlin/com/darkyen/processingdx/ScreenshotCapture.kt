@@ -0,0 +1,164 @@
+package com.darkyen.processingdx
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.files.FileHandle
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.graphics.GL30
+import com.badlogic.gdx.graphics.Pixmap
+import com.badlogic.gdx.graphics.PixmapIO
+import com.darkyen.Objects
+import org.lwjgl.opengl.GL11
+import org.lwjgl.opengl.GL30.glMapBufferRange
+import org.lwjgl.opengl.GL32
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Takes screenshots without stalling the render loop.
+ * Pixels are read into a pixel buffer object, which is copied out only after the GPU is done with it,
+ * a frame or more later (see [poll]), and the PNG is then encoded and written on a background thread.
+ *
+ * @param encoders amount of encoding threads
+ * @param maxQueued how many read screenshots may wait for encoding, before [poll] blocks until some are written,
+ *                  and also how many may wait for the GPU, before [capture] blocks
+ */
+internal class ScreenshotCapture(private val encoders:Int = 1, private val maxQueued:Int = Int.MAX_VALUE) {
+
+    private class Pending(val file:FileHandle, val width:Int, val height:Int, val buffer:Int, val fence:Long,
+                          val result:CompletableFuture<FileHandle>?)
+
+    private val pending = Objects<Pending>(false, 4)
+
+    private var encoder:ExecutorService? = null
+    private val queued = Semaphore(maxQueued)
+    private val written = AtomicInteger()
+
+    /** Screenshots captured but not written yet */
+    val inFlight:Int
+        get() = pending.size + maxQueued - queued.availablePermits()
+
+    /** Screenshots written so far */
+    val writtenCount:Int
+        get() = written.get()
+
+    /** Start reading the bound framebuffer of given size, to be written into [file]. */
+    fun capture(file:FileHandle, width:Int, height:Int, result:CompletableFuture<FileHandle>? = null) {
+        if (pending.size >= maxQueued) {
+            finishOldest()
+        }
+        val gl = Gdx.gl30
+        val buffer = gl.glGenBuffer()
+        gl.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, buffer)
+        gl.glBufferData(GL30.GL_PIXEL_PACK_BUFFER, width * height * 4, null, GL30.GL_STREAM_READ)
+        gl.glPixelStorei(GL20.GL_PACK_ALIGNMENT, 1)
+        GL11.glReadPixels(0, 0, width, height, GL20.GL_RGBA, GL20.GL_UNSIGNED_BYTE, 0L)
+        // Other reads must go to the client memory
+        gl.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0)
+        val fence = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0)
+        pending.add(Pending(file, width, height, buffer, fence, result))
+    }
+
+    /**
+     * Hand over captures whose pixels are ready to the encoder. Call once per frame.
+     * @param wait for all captures to be ready, like when closing */
+    fun poll(wait:Boolean = false) {
+        val pending = pending
+        var i = 0
+        while (i < pending.size) {
+            val capture = pending[i]
+            val status = GL32.glClientWaitSync(capture.fence, if (wait) GL32.GL_SYNC_FLUSH_COMMANDS_BIT else 0, if (wait) WaitTimeoutNanos else 0L)
+            val ready = status == GL32.GL_ALREADY_SIGNALED || status == GL32.GL_CONDITION_SATISFIED
+            if (ready || wait) {
+                pending.removeIndex(i)
+                finish(capture, ready)
+            } else {
+                i++
+            }
+        }
+    }
+
+    private fun finishOldest() {
+        val capture = pending.removeIndex(0)
+        val status = GL32.glClientWaitSync(capture.fence, GL32.GL_SYNC_FLUSH_COMMANDS_BIT, WaitTimeoutNanos)
+        finish(capture, status == GL32.GL_ALREADY_SIGNALED || status == GL32.GL_CONDITION_SATISFIED)
+    }
+
+    private fun finish(capture:Pending, ready:Boolean) {
+        val gl = Gdx.gl30
+        GL32.glDeleteSync(capture.fence)
+        val pixmap = if (ready) readPixels(capture) else null
+        gl.glDeleteBuffer(capture.buffer)
+
+        if (pixmap == null) {
+            failed(capture, IllegalStateException("Failed to read pixels of ${capture.file}"))
+            return
+        }
+        val encoder = encoder ?: Executors.newFixedThreadPool(encoders) { runnable -> Thread(runnable, "Screenshot encoder") }.apply { encoder = this }
+        // Backpressure, wait until there is room in the queue
+        queued.acquireUninterruptibly()
+        encoder.execute {
+            try {
+                PixmapIO.writePNG(capture.file, pixmap)
+                written.incrementAndGet()
+                capture.result?.complete(capture.file)
+            } catch (e:Throwable) {
+                failed(capture, e)
+            } finally {
+                pixmap.dispose()
+                queued.release()
+            }
+        }
+    }
+
+    private fun failed(capture:Pending, error:Throwable) {
+        val result = capture.result
+        if (result != null) {
+            result.completeExceptionally(error)
+        } else {
+            System.err.println("Failed to write ${capture.file}: $error")
+        }
+    }
+
+    /** Copy pixels of [capture] out of its buffer, flipped, or return null when that fails. */
+    private fun readPixels(capture:Pending):Pixmap? {
+        val gl = Gdx.gl30
+        gl.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, capture.buffer)
+        val rowBytes = capture.width * 4
+        val mapped:ByteBuffer? = glMapBufferRange(GL30.GL_PIXEL_PACK_BUFFER, 0L, (rowBytes * capture.height).toLong(), GL30.GL_MAP_READ_BIT)
+        var pixmap:Pixmap? = null
+        if (mapped != null) {
+            // Flip, GL rows go from the bottom
+            val result = Pixmap(capture.width, capture.height, Pixmap.Format.RGBA8888)
+            val pixels = result.pixels
+            for (row in 0 until capture.height) {
+                mapped.limit((capture.height - row) * rowBytes)
+                mapped.position((capture.height - row - 1) * rowBytes)
+                pixels.position(row * rowBytes)
+                pixels.put(mapped)
+            }
+            pixels.clear()
+            pixmap = result
+            gl.glUnmapBuffer(GL30.GL_PIXEL_PACK_BUFFER)
+        }
+        gl.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0)
+        return pixmap
+    }
+
+    /** Finish all captures and wait until they are written. */
+    fun dispose() {
+        poll(true)
+        val encoder = encoder ?: return
+        this.encoder = null
+        encoder.shutdown()
+        encoder.awaitTermination(1, TimeUnit.MINUTES)
+    }
+
+    private companion object {
+        const val WaitTimeoutNanos = 1_000_000_000L
+    }
+}
@@ -12,25 +12,26 @@ import com.badlogic.gdx.utils.IntArray as Ints
  *
  */
 @Suppress("NOTHING_TO_INLINE")
-private inline fun DrawBatch.vertex(x:Float, y:Float, fill:Fill, objX:Float, objY:Float, objWidth:Float, objHeight:Float):Short {
+private inline fun DrawBatch.vertex(x:Float, y:Float, fill:Fill, objX:Float, objY:Float, objWidth:Float, objHeight:Float):Int {
     return vertex(x, y, fill.color(x, y, objX, objY, objWidth, objHeight), fill.textureU(x, y, objX, objY, objWidth, objHeight), fill.textureV(x, y, objX, objY, objWidth, objHeight))
 }
 
 @Suppress("NOTHING_TO_INLINE")
 internal inline fun DrawBatch.expect(vCalls:Int, iCalls:Int, fill: Fill) {
     expect(vCalls, iCalls)
-    val tex = fill.texture()
-    if (tex != null) {
-        this.texture = tex
-    }
+    this.texture = fill.texture() ?: defaultTexture
 }
 
 fun background(color:Float) {
     background(color.red, color.green, color.blue, color.alpha)
 }
 
+/** Set by [Applet] while drawing into the overdraw heatmap, whose counts must not be cleared (clears are not counted) */
+internal var countingOverdraw = false
+
 fun background(r:Float, g:Float, b:Float, alpha:Float = 1f) {
-    Gdx.gl20.glClearColor(r, g, b, alpha)
+    if (countingOverdraw) return
+    GLState.clearColor(r, g, b, alpha)
     Gdx.gl20.glClear(GL20.GL_COLOR_BUFFER_BIT)
 }
 
@@ -39,6 +40,8 @@ fun DrawBatch.rectangleCentered(x:Float, y:Float, width:Float, height:Float = wi
 }
 
 fun DrawBatch.rectangle(x:Float, y:Float, width:Float, height:Float = width, fill:Fill = WhiteFill, stroke:Stroke? = null){
+    // Corners of the stroke are at most its diagonal away
+    if (isOutsideView(x, y, width, height, if (stroke == null) 0f else stroke.width * 1.5f)) return
     expect(4, 2, fill)
 
     val bl = vertex(x, y, fill, x, y, width, height)
@@ -59,6 +62,13 @@ fun DrawBatch.rectangle(x:Float, y:Float, width:Float, height:Float = width, fil
 }
 
 fun DrawBatch.rectangle(x:Float, y:Float, width:Float, height:Float = width, texture: Texture, color: Float = DrawBatch.White){
+    val region = atlas?.regionOf(texture)
+    if (region != null) {
+        rectangle(x, y, width, height, region, color)
+        return
+    }
+    if (isOutsideView(x, y, width, height)) return
+
     expect(4, 2)
     this.texture = texture
 
@@ -71,13 +81,32 @@ fun DrawBatch.rectangle(x:Float, y:Float, width:Float, height:Float = width, tex
 }
 
 fun DrawBatch.rectangle(x:Float, y:Float, width:Float, height:Float = width, texture:TextureRegion, color: Float = DrawBatch.White){
+    if (isOutsideView(x, y, width, height)) return
+    var u = texture.u
+    var v = texture.v
+    var u2 = texture.u2
+    var v2 = texture.v2
+    var regionTexture = texture.texture
+
+    val region = atlas?.regionOf(regionTexture)
+    if (region != null) {
+        // Remap from the whole original texture to its place in the atlas
+        val uScale = region.u2 - region.u
+        val vScale = region.v2 - region.v
+        u = region.u + u * uScale
+        u2 = region.u + u2 * uScale
+        v = region.v + v * vScale
+        v2 = region.v + v2 * vScale
+        regionTexture = region.texture
+    }
+
     expect(4, 2)
-    this.texture = texture.texture
+    this.texture = regionTexture
 
-    val bl = vertex(x, y, color, texture.u, texture.v)
-    val tl = vertex(x, y + height, color, texture.u, texture.v2)
-    val tr = vertex(x+width, y + height, color, texture.u2, texture.v2)
-    val br = vertex(x + width, y, color, texture.u2, texture.v)
+    val bl = vertex(x, y, color, u, v)
+    val tl = vertex(x, y + height, color, u, v2)
+    val tr = vertex(x+width, y + height, color, u2, v2)
+    val br = vertex(x + width, y, color, u2, v)
 
     indicesRect(bl, tl, tr, br)
 }
@@ -87,6 +116,7 @@ fun DrawBatch.ellipseCentered(x:Float, y:Float, width:Float, height:Float = widt
 }
 
 fun DrawBatch.ellipse(x:Float, y:Float, width:Float, height:Float = width, fill:Fill = WhiteFill, stroke:Stroke? = null) {
+    if (isOutsideView(x, y, width, height, if (stroke == null) 0f else stroke.width * 1.5f)) return
     val radiusX = width/2
     val radiusY = height/2
     val centerX = x + radiusX
@@ -117,10 +147,10 @@ fun DrawBatch.ellipse(x:Float, y:Float, width:Float, height:Float = width, fill:
     var br = right
 
     for (i in 0..quarterCount) {
-        var ntr:Short
-        var ntl:Short
-        var nbl:Short
-        var nbr:Short
+        var ntr:Int
+        var ntl:Int
+        var nbl:Int
+        var nbr:Int
         if (i == quarterCount) {
             ntr = right
             ntl = top
@@ -173,10 +203,22 @@ fun DrawBatch.ellipse(x:Float, y:Float, width:Float, height:Float = width, fill:
     }
 }
 
-val SharedLineDrawer = LineDrawer()
+/**
+ * Fill polygon made of contours given by [func], which may be concave, self-intersecting and have holes,
+ * which are separated by [PolygonDrawing.contour]. Its inside is decided by [rule].
+ * Drawn with stencil-then-cover (see [PolygonFiller]), so it needs a stencil buffer, which the canvas of [Applet] has,
+ * and can't be used in [DrawBatch.record]ings and [CommandBuffer]s.
+ */
+fun <T> DrawBatch.polygon(fill: Fill = WhiteFill, rule: FillRule = FillRule.NonZero, func: PolygonDrawing.() -> T):T {
+    val polygonFiller = polygonFiller
+    polygonFiller.init(fill, rule)
+    val result = polygonFiller.func()
+    polygonFiller.done(this)
+    return result
+}
 
 fun <T> DrawBatch.lineLoop(stroke: Stroke, func:LineDrawing.() -> T):T {
-    val lineDrawer = SharedLineDrawer
+    val lineDrawer = lineDrawer
     lineDrawer.init(stroke)
     val result = lineDrawer.func()
     lineDrawer.doneLoop(this)
@@ -184,7 +226,7 @@ fun <T> DrawBatch.lineLoop(stroke: Stroke, func:LineDrawing.() -> T):T {
 }
 
 fun <T> DrawBatch.line(stroke: Stroke, func:LineDrawing.() -> T):T {
-    val lineDrawer = SharedLineDrawer
+    val lineDrawer = lineDrawer
     lineDrawer.init(stroke)
     val result = lineDrawer.func()
     lineDrawer.doneLine(this)
@@ -0,0 +1,62 @@
+package com.darkyen.processingdx
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Hands the latest state over from one producer thread (like [Applet.update]) to one consumer thread (like `draw`),
+ * without locks and without either of them ever waiting for the other.
+ *
+ * The producer writes the whole state into [writing] and then calls [publish].
+ * The consumer calls [acquire] and reads [current] and the state published before it, [previous],
+ * for example to interpolate between them by [Applet.updateAlpha].
+ * States which were published while the consumer did not [acquire] are skipped.
+ *
+ * @param create creates one instance of the state, four are created
+ * @param copy copies the state from the first instance to the second one, used to keep [previous]
+ */
+class TripleBuffer<T>(create: () -> T, private val copy: (from:T, to:T) -> Unit) {
+
+    private val slots = ArrayList<T>(3).apply {
+        add(create())
+        add(create())
+        add(create())
+    }
+
+    /** Index of the slot which is neither written nor read, with [Fresh] bit when it was published and not acquired yet */
+    private val shared = AtomicInteger(1)
+    /** Slot of the producer */
+    private var back = 0
+    /** Slot of the consumer */
+    private var front = 2
+
+    /** State to be filled by the producer and then [publish]ed. It contains some older state, not the last published one. */
+    val writing:T
+        get() = slots[back]
+
+    /** Make [writing] available to the consumer. */
+    fun publish() {
+        back = shared.getAndSet(back or Fresh) and Index
+    }
+
+    /** Latest state obtained by [acquire], for the consumer */
+    val current:T
+        get() = slots[front]
+
+    /** State which was [current] before the last successful [acquire] */
+    val previous:T = create()
+
+    /**
+     * Obtain the latest published state, if there is any new.
+     * @return true when [current] (and [previous]) changed */
+    fun acquire():Boolean {
+        if (shared.get() and Fresh == 0) return false
+        copy(slots[front], previous)
+        front = shared.getAndSet(front) and Index
+        return true
+    }
+
+    private companion object {
+        const val Index = 0b011
+        const val Fresh = 0b100
+    }
+}
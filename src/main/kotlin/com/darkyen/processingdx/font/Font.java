@@ -5,6 +5,7 @@ import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.utils.Disposable;
 import com.badlogic.gdx.utils.IntMap;
+import com.darkyen.processingdx.GLState;
 
 import java.io.DataInputStream;
 
@@ -65,6 +66,7 @@ public final class Font implements Disposable {
             for (int i = 0; i < pageCount; i++) {
                 pages[i] = new Texture(fontFile.sibling(in.readUTF()), Pixmap.Format.RGBA8888, false);
             }
+            GLState.INSTANCE.invalidateTextures();
             this.lineGap = in.readShort();
             this.ascent = in.readShort();
             this.descent = -Math.abs(in.readShort());//Just to make sure it is negative
@@ -464,6 +464,8 @@ public final class GlyphLayout {
 
     /** @param x/y where upper left corner of the text should be drawn */
 	public void draw (DrawBatch batch, float x, float y) {
+		// Text goes down from y, glyphs may overhang the layout bounds, so pad by a line
+		if (batch.isOutsideView(x, y - height, width, height, font.lineHeight)) return;
 		for (GlyphRun run : runs) {
 			final float color = run.color;
 
@@ -481,10 +483,11 @@ public final class GlyphLayout {
 				batch.setTexture(font.pages[glyph.pageIndex]);
 
 				batch.expect(4, 6);
-				final short tl = batch.vertex(runX + glyphXOffset, runYBaseline - glyph.yOffset, color, glyph.u, glyph.v);
-				final short tr = batch.vertex(runX + glyphXOffset + glyph.pageWidth, runYBaseline - glyph.yOffset, color, glyph.u2, glyph.v);
-				final short bl = batch.vertex(runX + glyphXOffset, runYBaseline - glyph.yOffset -glyph.pageHeight, color, glyph.u, glyph.v2);
-				final short br = batch.vertex(runX + glyphXOffset + glyph.pageWidth, runYBaseline - glyph.yOffset - glyph.pageHeight, color, glyph.u2, glyph.v2);
+				// In the order of indicesRect, so that the glyphs can use the quad index buffer
+				final int bl = batch.vertex(runX + glyphXOffset, runYBaseline - glyph.yOffset -glyph.pageHeight, color, glyph.u, glyph.v2);
+				final int tl = batch.vertex(runX + glyphXOffset, runYBaseline - glyph.yOffset, color, glyph.u, glyph.v);
+				final int tr = batch.vertex(runX + glyphXOffset + glyph.pageWidth, runYBaseline - glyph.yOffset, color, glyph.u2, glyph.v);
+				final int br = batch.vertex(runX + glyphXOffset + glyph.pageWidth, runYBaseline - glyph.yOffset - glyph.pageHeight, color, glyph.u2, glyph.v2);
 				batch.indicesRect(bl, tl, tr, br);
 			}
 		}
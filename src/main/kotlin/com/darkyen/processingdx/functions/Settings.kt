@@ -16,4 +16,15 @@ interface Settings {
     fun fullScreen()
 
     fun clampMouse()
+
+    /**
+     * Initial size of the [com.darkyen.processingdx.DrawBatch] given to draw, in vertices.
+     * @param wideIndices use 32 bit indices, needed for more than 65536 vertices
+     */
+    fun batchSize(vertices:Int, wideIndices:Boolean = true)
+
+    /**
+     * Call [com.darkyen.processingdx.Applet.update] [updatesPerSecond] times per second, on its own thread.
+     */
+    fun fixedUpdate(updatesPerSecond:Int)
 }
\ No newline at end of file
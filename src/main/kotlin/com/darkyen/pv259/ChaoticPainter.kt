@@ -18,6 +18,7 @@ object ChaoticPainter : Applet() {
     override fun Settings.settings() {
         size(1080, 720)
         clampMouse()
+        batchSize(1 shl 20)
     }
 
     private val points = mutableListOf<Point>()
@@ -15,6 +15,7 @@ object FountainPlanets : Applet() {
 
     override fun Settings.settings() {
         canvasSize(1024, 4096*2)
+        batchSize(1 shl 20)
     }
 
     var drawAgain = true
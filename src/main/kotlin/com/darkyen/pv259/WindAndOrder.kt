@@ -1,7 +1,7 @@
 package com.darkyen.pv259
 
+import com.badlogic.gdx.math.Affine2
 import com.badlogic.gdx.math.MathUtils
-import com.badlogic.gdx.math.Matrix3
 import com.badlogic.gdx.math.Vector2
 import com.darkyen.processingdx.*
 import com.darkyen.processingdx.functions.Settings
@@ -76,20 +76,9 @@ object WindAndOrder:Applet() {
         }
 
         draw(DrawBatch.Blend.None) {
-            grids[0].transform.idt()
-                    .translate(mouseX + MathUtils.sinDeg(mouseY) * 10f, mouseY + MathUtils.sinDeg(mouseX) * 10f)
-                    .rotate(Math.sin(time).toFloat() * 1.3f)
-                    .translate(- grids[0].size/2f, - grids[0].size/2f)
-
-            grids[1].transform.idt()
-                    .translate(mouseX, mouseY)
-                    .rotate(mouseX)
-                    .translate(- grids[1].size/2f, - grids[1].size/2f)
-
-            grids[2].transform.idt()
-                    .translate(mouseX, mouseY)
-                    .rotate(time.toFloat())
-                    .translate(- grids[2].size/2f, - grids[2].size/2f)
+            grids[0].setTransform(mouseX + MathUtils.sinDeg(mouseY) * 10f, mouseY + MathUtils.sinDeg(mouseX) * 10f, Math.sin(time).toFloat() * 1.3f)
+            grids[1].setTransform(mouseX, mouseY, mouseX)
+            grids[2].setTransform(mouseX, mouseY, time.toFloat())
 
             for (grid in grids) {
                 grid.draw(this)
@@ -100,7 +89,7 @@ object WindAndOrder:Applet() {
 
                 for ((gridI, x, y) in line) {
                     val grid = grids[gridI]
-                    v.set(grid.points[x][y]).mul(grid.transform)
+                    grid.transform.applyTo(v.set(grid.points[x][y]))
 
                     vertex(v.x, v.y)
                 }
@@ -113,7 +102,9 @@ object WindAndOrder:Applet() {
 
         val size = pointAmount * spacing
 
-        val transform = Matrix3()
+        val transform = Affine2()
+        /** Rotation part of [transform], in degrees */
+        var rotation = 0f
 
         val points = Array(pointAmount) { x -> Array(pointAmount) { y ->
             Vector2(x*spacing, y*spacing)
@@ -121,17 +112,29 @@ object WindAndOrder:Applet() {
 
         val PointFill = fillCreator()
 
-        fun draw(batch: DrawBatch) {
-            val v = Vector2()
-
-            points.forEachIndexed { x, row ->
-                row.forEachIndexed { y, point ->
-
-                    v.set(point).mul(transform)
+        fun setTransform(x:Float, y:Float, rotation:Float) {
+            this.rotation = rotation
+            transform.idt()
+                    .translate(x, y)
+                    .rotate(rotation)
+                    .translate(- size/2f, - size/2f)
+        }
 
-                    batch.rectangleCentered(v.x, v.y, pointSide, fill = PointFill)
+        fun draw(batch: DrawBatch) {
+            batch.pushMatrix()
+            batch.applyMatrix(transform)
+
+            // Points are transformed on the GPU, squares are rotated back to stay axis aligned
+            val squareRotation = -rotation
+            batch.instanced(InstanceShape.Rectangle) {
+                for (row in points) {
+                    for (point in row) {
+                        instance(point.x, point.y, pointSide, color = PointFill.color(point.x, point.y), rotation = squareRotation)
+                    }
                 }
             }
+
+            batch.popMatrix()
         }
 
     }